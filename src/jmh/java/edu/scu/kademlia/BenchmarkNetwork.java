@@ -0,0 +1,125 @@
+package edu.scu.kademlia;
+
+import java.rmi.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-process network of any size for the benchmarks. Calls go straight to the client of the host called, with no
+ * delay and no logging, so a benchmark measures the lookup logic and not the transport. DummyNetwork prints every
+ * message and joins each host through a lookup, which does not scale past a few dozen hosts.
+ *
+ * Instead of joining, every host gets the routing table a long-running node would end up with: for each bucket, up
+ * to k hosts picked at random from the part of the key space the bucket covers.
+ */
+class BenchmarkNetwork {
+    final Map<Long, KademliaClient> clients = new ConcurrentHashMap<>();
+
+    final List<Host> hosts = new ArrayList<>();
+
+    BenchmarkNetwork(int hostCount, int ksize, long seed) {
+        Random random = new Random(seed);
+        long[] keys = new long[hostCount];
+        for (int i = 0; i < hostCount; i++) {
+            keys[i] = random.nextLong() >>> 1;
+        }
+        // positive keys sort the same signed and unsigned, so every bucket is a run of the sorted array
+        Arrays.sort(keys);
+        Host[] sorted = new Host[hostCount];
+        for (int i = 0; i < hostCount; i++) {
+            sorted[i] = new Host("ip" + i, keys[i], 8000);
+            hosts.add(sorted[i]);
+        }
+
+        for (Host host : sorted) {
+            KademliaRPC rpc = new DirectRPC(clients, host);
+            KademliaClient client = new KademliaClient(host, rpc, new FlatRoutingTable(64, host, ksize, rpc), false);
+            client.setCacheValues(false);
+            clients.put(host.getKey(), client);
+
+            for (int prefixBits = 0; prefixBits < Long.SIZE; prefixBits++) {
+                // the bucket sharing prefixBits bits with us and differing in the next
+                long bit = 1L << (Long.SIZE - 1 - prefixBits);
+                long from = (host.getKey() ^ bit) & -bit;
+                long to = from | (bit - 1);
+                int first = firstAbove(keys, from - 1);
+                int end = firstAbove(keys, to);
+                for (int picked = 0; picked < ksize && end > first; picked++) {
+                    client.addHost(sorted[first + random.nextInt(end - first)]);
+                }
+            }
+        }
+    }
+
+    KademliaClient client(int index) {
+        return clients.get(hosts.get(index).getKey());
+    }
+
+    // The index of the first key above the given one
+    private static int firstAbove(long[] keys, long key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static class DirectRPC implements KademliaRPC {
+        final Map<Long, KademliaClient> clients;
+        final Host self;
+
+        DirectRPC(Map<Long, KademliaClient> clients, Host self) {
+            this.clients = clients;
+            this.self = self;
+        }
+
+        private KademliaClient reach(Host host) throws ConnectException {
+            KademliaClient client = clients.get(host.getKey());
+            if (client == null) {
+                throw new ConnectException("Host offline");
+            }
+            client.addHost(self);
+            return client;
+        }
+
+        @Override
+        public List<Host> findNode(Host host, long key, boolean isNew) throws ConnectException {
+            return reach(host).findNode(key);
+        }
+
+        @Override
+        public HostSearchResult findValue(Host host, long key) throws ConnectException {
+            return reach(host).findValue(key);
+        }
+
+        @Override
+        public void store(Host host, long key, DataBlock data) throws ConnectException {
+            reach(host).store(key, data);
+        }
+
+        @Override
+        public void storeBatch(Host host, Map<Long, DataBlock> entries) throws ConnectException {
+            reach(host).storeBatch(entries);
+        }
+
+        @Override
+        public void cache(Host host, long key, DataBlock data) throws ConnectException {
+            reach(host).cache(key, data);
+        }
+
+        @Override
+        public boolean ping(Host host) {
+            return clients.containsKey(host.getKey());
+        }
+    }
+}
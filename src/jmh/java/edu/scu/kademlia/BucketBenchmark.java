@@ -0,0 +1,58 @@
+package edu.scu.kademlia;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bucket.addHost on a full bucket: hearing from a host already in it, which moves it to the tail, and hearing from a
+ * new one, which goes to the replacement cache. Also a host leaving and the newest replacement taking its place.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BucketBenchmark {
+    private static final int KSIZE = 20;
+
+    private Bucket bucket;
+
+    private final Host[] members = new Host[KSIZE];
+
+    private final Host[] strangers = new Host[1024];
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(23);
+        bucket = new Bucket(KSIZE, new BlockingAsyncRPC(new AlwaysOnlineRPC()));
+        for (int i = 0; i < KSIZE; i++) {
+            members[i] = new Host("ip" + i, random.nextLong(), 8000);
+            bucket.addHost(members[i]);
+        }
+        for (int i = 0; i < strangers.length; i++) {
+            strangers[i] = new Host("stranger" + i, random.nextLong(), 8000);
+        }
+    }
+
+    @Benchmark
+    public boolean addKnownHost() {
+        return bucket.addHost(members[next++ % KSIZE]);
+    }
+
+    @Benchmark
+    public boolean addNewHost() {
+        return bucket.addHost(strangers[next++ & (strangers.length - 1)]);
+    }
+
+    @Benchmark
+    public void removeAndReadd() {
+        Host host = bucket.getNodesInBucket().get(0);
+        bucket.removeHost(host);
+        bucket.addHost(host);
+    }
+}
@@ -0,0 +1,142 @@
+package edu.scu.kademlia;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the messages that carry values: a STORE request and the two kinds of findValue answer, in
+ * the UDP wire format, and a value through Java serialization the way RMI sends it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int valueBytes;
+
+    private final Host sender = new Host("10.0.0.1", 42, 8000);
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MessageCodec.MAX_MESSAGE_SIZE);
+
+    private DataBlock data;
+
+    private HostSearchResult hostsResult;
+
+    private HostSearchResult dataResult;
+
+    private ByteBuffer encodedStore;
+
+    private ByteBuffer encodedHosts;
+
+    private ByteBuffer encodedData;
+
+    private byte[] serializedData;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(23);
+        byte[] payload = new byte[valueBytes];
+        random.nextBytes(payload);
+        data = new DataBlock(payload);
+        List<Host> hosts = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            hosts.add(new Host("10.0.0." + i, random.nextLong(), 8000));
+        }
+        hostsResult = new HostSearchResult(hosts);
+        dataResult = new HostSearchResult(data);
+
+        encodeStore();
+        encodedStore = copy(buffer);
+        encodeHostsAnswer();
+        encodedHosts = copy(buffer);
+        encodeDataAnswer();
+        encodedData = copy(buffer);
+        serializedData = serialize();
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.position());
+        copy.put(buffer.duplicate().flip());
+        return copy.flip();
+    }
+
+    @Benchmark
+    public int encodeStore() {
+        buffer.clear();
+        MessageCodec.writeRequestHeader(buffer, MessageCodec.STORE, 1, sender);
+        buffer.putLong(7);
+        MessageCodec.writeData(buffer, data);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public DataBlock decodeStore() {
+        ByteBuffer message = encodedStore.duplicate();
+        message.get();
+        message.getInt();
+        MessageCodec.readSender(message, "10.0.0.1");
+        message.getLong();
+        return MessageCodec.readData(message);
+    }
+
+    @Benchmark
+    public int encodeHostsAnswer() {
+        buffer.clear();
+        MessageCodec.writeHeader(buffer, (byte) (MessageCodec.FIND_VALUE | MessageCodec.RESPONSE), 1);
+        MessageCodec.writeSearchResult(buffer, hostsResult);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public HostSearchResult decodeHostsAnswer() {
+        ByteBuffer message = encodedHosts.duplicate();
+        message.get();
+        message.getInt();
+        return MessageCodec.readSearchResult(message);
+    }
+
+    @Benchmark
+    public int encodeDataAnswer() {
+        buffer.clear();
+        MessageCodec.writeHeader(buffer, (byte) (MessageCodec.FIND_VALUE | MessageCodec.RESPONSE), 1);
+        MessageCodec.writeSearchResult(buffer, dataResult);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public HostSearchResult decodeDataAnswer() {
+        ByteBuffer message = encodedData.duplicate();
+        message.get();
+        message.getInt();
+        return MessageCodec.readSearchResult(message);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(valueBytes + 64);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedData))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package edu.scu.kademlia;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full iterative lookups over a {@link BenchmarkNetwork}: nodeLookup of random keys, and get of stored values with
+ * the value cache off so every read walks the network.
+ *
+ * The network of 100k clients keeps about 800 MB live. The heap is fixed at its full size, since growing it takes
+ * full collections of several seconds that would otherwise land in the measured iterations, and the garbage of the
+ * setup is collected before the first one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+    private static final int KSIZE = 8;
+    private static final int VALUES = 1024;
+
+    @Param({"1000", "10000", "100000"})
+    public int hosts;
+
+    private BenchmarkNetwork network;
+
+    private final long[] randomKeys = new long[4096];
+
+    private final long[] storedKeys = new long[VALUES];
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        network = new BenchmarkNetwork(hosts, KSIZE, 23);
+        java.util.Random random = new java.util.Random(23);
+        for (int i = 0; i < randomKeys.length; i++) {
+            randomKeys[i] = random.nextLong();
+        }
+        for (int i = 0; i < VALUES; i++) {
+            storedKeys[i] = random.nextLong();
+            network.client(random.nextInt(hosts)).put(storedKeys[i], new DataBlock(i));
+        }
+        System.gc();
+    }
+
+    private KademliaClient nextClient() {
+        return network.client(Math.floorMod(next * 7919, hosts));
+    }
+
+    @Benchmark
+    public Object nodeLookup() {
+        next++;
+        return nextClient().nodeLookup(randomKeys[next & (randomKeys.length - 1)], false);
+    }
+
+    @Benchmark
+    public Object get() {
+        next++;
+        return nextClient().get(storedKeys[next & (VALUES - 1)]);
+    }
+}
@@ -0,0 +1,69 @@
+package edu.scu.kademlia;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The routing table reads every lookup and every incoming findNode make, on a table that has seen the given number
+ * of hosts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingTableBenchmark {
+    private static final int KSIZE = 20;
+
+    @Param({"flat", "tree"})
+    public String table;
+
+    @Param({"1000", "10000", "100000"})
+    public int hosts;
+
+    private RoutingTable routingTable;
+
+    private final long[] keys = new long[4096];
+
+    private final Host[] known = new Host[4096];
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(23);
+        Host self = new Host("self", random.nextLong(), 8000);
+        KademliaRPC rpc = new AlwaysOnlineRPC();
+        routingTable = table.equals("flat")
+                ? new FlatRoutingTable(64, self, KSIZE, rpc)
+                : new TreeRoutingTable(64, self, KSIZE, rpc);
+        for (int i = 0; i < hosts; i++) {
+            routingTable.addHost(new Host("ip" + i, random.nextLong(), 8000));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+        }
+        var all = routingTable.allHosts();
+        for (int i = 0; i < known.length; i++) {
+            known[i] = all.get(random.nextInt(all.size()));
+        }
+    }
+
+    @Benchmark
+    public Object getClosestHosts() {
+        return routingTable.getClosestHosts(keys[next++ & (keys.length - 1)], KSIZE, false);
+    }
+
+    @Benchmark
+    public Object getClosestBucket() {
+        return routingTable.getClosestBucket(keys[next++ & (keys.length - 1)]);
+    }
+
+    @Benchmark
+    public void addKnownHost() {
+        routingTable.addHost(known[next++ & (known.length - 1)]);
+    }
+}
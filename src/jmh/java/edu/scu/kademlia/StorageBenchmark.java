@@ -0,0 +1,76 @@
+package edu.scu.kademlia;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * put and get on each storage engine, over a fixed set of keys so the engines hold the same data throughout.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageBenchmark {
+    private static final int KEYS = 1 << 16;
+
+    @Param({"memory", "log"})
+    public String engine;
+
+    @Param({"128"})
+    public int valueBytes;
+
+    private StorageEngine store;
+
+    private Path directory;
+
+    private final long[] keys = new long[KEYS];
+
+    private DataBlock data;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (engine.equals("log")) {
+            directory = Files.createTempDirectory("kademlia-bench");
+            store = new LogStructuredStorageEngine(directory);
+        } else {
+            store = new InMemoryStorageEngine();
+        }
+        Random random = new Random(23);
+        data = new DataBlock(new byte[valueBytes]);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = random.nextLong();
+            store.put(keys[i], data);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public void put() {
+        store.put(keys[next++ & (KEYS - 1)], data);
+    }
+
+    @Benchmark
+    public DataBlock get() {
+        return store.get(keys[next++ & (KEYS - 1)]);
+    }
+}
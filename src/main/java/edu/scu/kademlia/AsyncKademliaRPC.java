@@ -0,0 +1,44 @@
+package edu.scu.kademlia;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking version of {@link KademliaRPC}. Each call returns immediately and its future completes with the
+ * answer, or exceptionally with a {@link java.rmi.ConnectException} if the host could not be reached or a
+ * {@link java.util.concurrent.TimeoutException} if it did not answer within the timeout.
+ */
+public interface AsyncKademliaRPC {
+
+    /**
+     * @param host          The host to send this RPC to
+     * @param key           The key we would like to find the host for
+     * @param timeoutMillis How long to wait for an answer
+     * @return A list of up to k nodes that are closest to the target key
+     */
+    CompletableFuture<List<Host>> findNode(Host host, long key, boolean isNew, long timeoutMillis);
+
+    /**
+     * @param host          The host to send this RPC to
+     * @param key           The key we would like to find the host for
+     * @param timeoutMillis How long to wait for an answer
+     * @return Either the next host to contact or the requested data
+     */
+    CompletableFuture<HostSearchResult> findValue(Host host, long key, long timeoutMillis);
+
+    CompletableFuture<Void> store(Host host, long key, DataBlock data, long timeoutMillis);
+
+    /**
+     * Stores several values with one RPC. Replication to a joining host and republishing send their values this way.
+     *
+     * @param host          The host to send this RPC to
+     * @param entries       The values to store, by key
+     * @param timeoutMillis How long to wait for the whole batch to be acknowledged
+     */
+    CompletableFuture<Void> storeBatch(Host host, Map<Long, DataBlock> entries, long timeoutMillis);
+
+    CompletableFuture<Void> cache(Host host, long key, DataBlock data, long timeoutMillis);
+
+    CompletableFuture<Boolean> ping(Host host, long timeoutMillis);
+}
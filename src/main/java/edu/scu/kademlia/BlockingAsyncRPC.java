@@ -0,0 +1,96 @@
+package edu.scu.kademlia;
+
+import java.lang.reflect.Method;
+import java.rmi.ConnectException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Adapts a blocking {@link KademliaRPC}, such as {@link KademliaRPCImpl} or the in-process DummyRPC, to
+ * {@link AsyncKademliaRPC}. Each call runs on its own thread. On Java 21 and later these are virtual threads, so
+ * thousands of outstanding RPCs only cost a little heap; older runtimes fall back to a cached pool of daemon threads.
+ */
+public class BlockingAsyncRPC implements AsyncKademliaRPC {
+    private static final ExecutorService EXECUTOR = newExecutor();
+
+    private final KademliaRPC rpc;
+
+    public BlockingAsyncRPC(KademliaRPC rpc) {
+        this.rpc = rpc;
+    }
+
+    @Override
+    public CompletableFuture<List<Host>> findNode(Host host, long key, boolean isNew, long timeoutMillis) {
+        return call(() -> rpc.findNode(host, key, isNew), timeoutMillis);
+    }
+
+    @Override
+    public CompletableFuture<HostSearchResult> findValue(Host host, long key, long timeoutMillis) {
+        return call(() -> {
+            HostSearchResult result = rpc.findValue(host, key);
+            if (result == null) {
+                throw new ConnectException("No answer from " + host);
+            }
+            return result;
+        }, timeoutMillis);
+    }
+
+    @Override
+    public CompletableFuture<Void> store(Host host, long key, DataBlock data, long timeoutMillis) {
+        return call(() -> {
+            rpc.store(host, key, data);
+            return null;
+        }, timeoutMillis);
+    }
+
+    @Override
+    public CompletableFuture<Void> storeBatch(Host host, Map<Long, DataBlock> entries, long timeoutMillis) {
+        return call(() -> {
+            rpc.storeBatch(host, entries);
+            return null;
+        }, timeoutMillis);
+    }
+
+    @Override
+    public CompletableFuture<Void> cache(Host host, long key, DataBlock data, long timeoutMillis) {
+        return call(() -> {
+            rpc.cache(host, key, data);
+            return null;
+        }, timeoutMillis);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> ping(Host host, long timeoutMillis) {
+        return call(() -> rpc.ping(host), timeoutMillis);
+    }
+
+    private <T> CompletableFuture<T> call(Callable<T> request, long timeoutMillis) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    future.complete(request.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return timeoutMillis > 0 ? future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS) : future;
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "kademlia-rpc");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
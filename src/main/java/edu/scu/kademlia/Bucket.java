@@ -3,132 +3,220 @@ package edu.scu.kademlia;
 import lombok.Getter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * A k-bucket. The contents are copy-on-write: every change builds new arrays under the bucket's lock and publishes
+ * them with a single volatile write, so readers never lock and always see a consistent set of hosts.
+ *
+ * Hosts that arrive while the bucket is full wait in a replacement cache, newest last. Each time that happens the
+ * least recently seen host is pinged in the background, one ping at a time; if it does not answer it is swapped for
+ * the newest replacement. Adding a host never waits on the network.
+ */
 public class Bucket {
+    // Default time to wait for an eviction or refresh ping
+    public static final long DEFAULT_PING_TIMEOUT_MILLIS = 5000;
+
+    private static final long[] NO_KEYS = new long[0];
+    private static final Host[] NO_HOSTS = new Host[0];
+
     // k-bucket k size
     private int ksize;
 
+    // The current contents of this bucket. Replaced, never modified.
+    private volatile Contents contents = new Contents(NO_KEYS, NO_HOSTS, NO_HOSTS);
+
+    // Set once the bucket has been split. A retired bucket refuses new hosts so none are lost in the split.
+    private boolean retired;
+
+    // Whether an eviction ping is waiting for its answer
+    private boolean pinging;
+
+    // When a host in this bucket was last heard from or a lookup last went into its range
     @Getter
-    private ArrayList<Host> nodesInBucket;
+    private volatile long lastActive = System.currentTimeMillis();
 
-        //    private ArrayList<Host> nodesBackup;
-    private KademliaRPC rpc;
+    private AsyncKademliaRPC rpc;
+
+    // Counts the hosts dropped for not answering a ping. Shared by the buckets of a routing table.
+    private final LongAdder evictions;
 
     @Getter
     private UUID uuid;
 
-    public Bucket(int ksize, KademliaRPC rpc) {
+    public Bucket(int ksize, AsyncKademliaRPC rpc) {
+        this(ksize, rpc, new LongAdder());
+    }
+
+    public Bucket(int ksize, AsyncKademliaRPC rpc, LongAdder evictions) {
         this.uuid = UUID.randomUUID();
         this.ksize = ksize;
-        this.nodesInBucket = new ArrayList<Host>(ksize);
-//        this.nodesBackup = new ArrayList<Host>();
         this.rpc = rpc;
+        this.evictions = evictions;
     }
 
-    public void removeHost(Host host) {
-        nodesInBucket.remove(host);
+    /**
+     * Removes a host, filling its place with the newest replacement if there is one.
+     */
+    public synchronized void removeHost(Host host) {
+        Contents current = contents;
+        int index = current.indexOf(host.getKey());
+        if (index >= 0) {
+            contents = current.without(index).promote();
+        } else {
+            contents = current.withoutReplacement(host.getKey());
+        }
+    }
+
+    /**
+     * @return the hosts in this bucket, least recently seen first
+     */
+    public List<Host> getNodesInBucket() {
+        return Arrays.asList(contents.hosts.clone());
     }
 
     /**
-     * move a node to the tail of its bucket
+     * @return the hosts waiting for a place in this bucket, newest last
      */
-    private void moveToLast(Host node){
-        nodesInBucket.remove(node);
-        nodesInBucket.add(node);
+    public List<Host> getReplacements() {
+        return Arrays.asList(contents.replacements.clone());
+    }
+
+    public int size() {
+        return contents.hosts.length;
     }
 
     /**
-     * Get least recent seen node in a bucket
-     * @return least recent seen node
+     * Appends the hosts of this bucket to a closest-first list, sorted by distance to a key, keeping at most count
+     * hosts in the list.
+     *
+     * @param exclude a host to leave out, or null
      */
-    private Host getLeastRecentSeen() {
-        Host resHost = nodesInBucket.get(0);
-        long maxTime=0;
-        long interval = 0;
-
-        for(Host curHost: nodesInBucket){
-            interval = curHost.getMostRecentSeen() - System.currentTimeMillis();
-            if(interval > maxTime){
-                maxTime = interval;
-                resHost = curHost;
+    public void addClosestTo(long key, int count, Host exclude, List<Host> closest) {
+        Contents current = contents;
+        int start = closest.size();
+        for (int i = 0; i < current.keys.length; i++) {
+            if (exclude == null || current.keys[i] != exclude.getKey()) {
+                closest.add(current.hosts[i]);
             }
         }
-        return resHost;
+        closest.subList(start, closest.size()).sort(KademliaClient.distanceComparator(key));
+        while (closest.size() > count) {
+            closest.remove(closest.size() - 1);
+        }
     }
 
-    public boolean addHost(Host host){
-        //case 1: bucket not full and bucket not contain this node
-        if(nodesInBucket.size() < ksize && !nodesInBucket.contains(host)){
-//            System.out.println("case 1: before size: "+nodesInBucket.size()); //for test only
-            //append node to the tail
-            nodesInBucket.add(host);
-//            System.out.println("case 1: after size: "+nodesInBucket.size()); //for test only
-            return true;
-        }
+    /**
+     * Marks this bucket as split and returns the hosts it held. After this call addHost always fails.
+     */
+    public synchronized List<Host> retire() {
+        retired = true;
+        return getNodesInBucket();
+    }
 
-        //case2: bucket not full and bucket contains this node
-        if(nodesInBucket.size() <= ksize && nodesInBucket.contains(host)){
-//            System.out.println("case 2: before size: "+nodesInBucket.size()); //for test only
-            moveToLast(host);
-//            System.out.println("case 2: after size: "+nodesInBucket.size()); //for test only
-            return true;
-        }
+    public synchronized boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Adds a host, or marks it as the most recently seen if it is already here.
+     *
+     * @return false if the bucket is full, in which case the host is kept as a replacement
+     */
+    public boolean addHost(Host host) {
+        touch();
+        Host pingNode;
+        synchronized (this) {
+            if (retired) {
+                return false;
+            }
+            Contents current = contents;
+            int index = current.indexOf(host.getKey());
+
+            //case 1: bucket contains this node: move it to the tail
+            if (index >= 0) {
+                contents = current.without(index).with(host);
+                return true;
+            }
+
+            //case 2: bucket not full: append node to the tail
+            if (current.size() < ksize) {
+                contents = current.withoutReplacement(host.getKey()).with(host);
+                return true;
+            }
 
-        //bucket full: ping least recent seen node in the bucket
-        // case3_1: if not reply, remove least recent seen node and add this node to tail
-        // case3_2: if reply, move this least recent seen node to tail. add new node as backup.
-        Host pingNode = getLeastRecentSeen();
-        //Case 3_1:
-        if(!rpc.ping(host)) {
-//            System.out.println("case 3_1: before size: "+nodesInBucket.size()); //for test only
-            nodesInBucket.remove(pingNode);
-//            System.out.println("case 3_1: after remove size: "+nodesInBucket.size()); //for test only
-            nodesInBucket.add(host);
-//            System.out.println("case 3_1: after add size: "+nodesInBucket.size()); //for test only
-            return true;
+            //case 3: bucket full: keep the node as a replacement and check on the least recently seen node
+            contents = current.withReplacement(host, ksize);
+            if (pinging) {
+                return false;
+            }
+            pinging = true;
+            pingNode = current.hosts[0];
         }
 
+        rpc.ping(pingNode, DEFAULT_PING_TIMEOUT_MILLIS)
+                .whenComplete((alive, error) -> evictionChecked(pingNode, error == null && alive));
         return false;
-        //case 3_2:
-//        else{
-//            moveToLast(nodesInBucket, pingNode);
-//            System.out.println("case 3_2: before nodesbackup size: "+nodesBackup.size()); //for test only
-//            nodesBackup.add(node);
-//            System.out.println("case 3_2: after nodesbackup size: "+ nodesBackup.size()); //for test only
-//            System.out.println("can not add this node, all nodes in the bucket are alive!");
-//        }
     }
 
+    // case 3_1: no reply, swap in the newest replacement. case 3_2: reply, move the pinged node to the tail.
+    private synchronized void evictionChecked(Host pingNode, boolean alive) {
+        pinging = false;
+        Contents current = contents;
+        int index = current.indexOf(pingNode.getKey());
+        if (retired || index < 0) {
+            return;
+        }
+        if (alive) {
+            contents = current.without(index).with(pingNode);
+        } else {
+            contents = current.without(index).promote();
+            evictions.increment();
+        }
+    }
+
+    // Drops a host that did not answer a refresh ping, if it is still here
+    private synchronized void evict(Host host) {
+        Contents current = contents;
+        int index = current.indexOf(host.getKey());
+        if (index >= 0) {
+            contents = current.without(index).promote();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Marks the bucket as active now
+     */
+    public void touch() {
+        lastActive = System.currentTimeMillis();
+    }
 
     /**
-     * update the network by refresh the k-buckets
+     * Pings every host in the bucket at once and replaces the ones that do not answer.
+     *
+     * @return completes once every ping has been answered or timed out
      */
-    public void refreshBucket() {
-        //step 1: rule out not respond hosts in the bucket
-        nodesInBucket.removeIf(curHost-> !rpc.ping(curHost));
-
-//        //Step2: refill nodes(from backup) to the bucket
-//        System.out.println("start step2");
-//        while(nodesInBucket.size() < ksize && !nodesBackup.isEmpty()){
-//            //check this cur host is still alive. if cur is alive, add cur to bucket. Otherwise continue.
-//            Host curBackup = nodesBackup.get(0);
-//
-//            if(rpc.ping(curBackup)){
-//
-//                System.out.println("step2 before nodebackup size: "+nodesBackup.size()); //for test only
-//                nodesBackup.remove(curBackup);
-//                System.out.println("step2 after nodesbackup size: "+nodesBackup.size()); //for test only
-//                nodesInBucket.add(curBackup);
-//                System.out.println("step2: after nodesinbucket size: "+nodesInBucket.size()); //for test only
-//            }
-//
-//        }
+    public CompletableFuture<Void> refreshBucket() {
+        List<CompletableFuture<Void>> pings = new ArrayList<>();
+        for (Host curHost : contents.hosts) {
+            pings.add(rpc.ping(curHost, DEFAULT_PING_TIMEOUT_MILLIS).handle((alive, error) -> {
+                if (error != null || !alive) {
+                    evict(curHost);
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(pings.toArray(new CompletableFuture[0]));
     }
 
     public boolean contains(Host host) {
-        return nodesInBucket.contains(host);
+        return contents.indexOf(host.getKey()) >= 0;
     }
 
     @Override
@@ -144,7 +232,81 @@ public class Bucket {
         return Objects.hash(uuid);
     }
 
-}
+    /**
+     * An immutable snapshot of the hosts in a bucket, least recently seen first, and of its replacement cache. The
+     * keys are kept apart from the hosts so that distance scans only touch a primitive array.
+     */
+    private static final class Contents {
+        final long[] keys;
+        final Host[] hosts;
+        final Host[] replacements;
+
+        Contents(long[] keys, Host[] hosts, Host[] replacements) {
+            this.keys = keys;
+            this.hosts = hosts;
+            this.replacements = replacements;
+        }
 
+        int size() {
+            return keys.length;
+        }
+
+        int indexOf(long key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Contents with(Host host) {
+            long[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+            Host[] newHosts = Arrays.copyOf(hosts, hosts.length + 1);
+            newKeys[keys.length] = host.getKey();
+            newHosts[hosts.length] = host;
+            return new Contents(newKeys, newHosts, replacements);
+        }
+
+        Contents without(int index) {
+            long[] newKeys = new long[keys.length - 1];
+            Host[] newHosts = new Host[hosts.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(hosts, 0, newHosts, 0, index);
+            System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+            System.arraycopy(hosts, index + 1, newHosts, index, hosts.length - index - 1);
+            return new Contents(newKeys, newHosts, replacements);
+        }
 
+        // Adds a replacement as the newest, dropping the oldest if there are more than limit
+        Contents withReplacement(Host host, int limit) {
+            Host[] rest = withoutReplacement(host.getKey()).replacements;
+            int keep = Math.min(rest.length, limit - 1);
+            Host[] newReplacements = new Host[keep + 1];
+            System.arraycopy(rest, rest.length - keep, newReplacements, 0, keep);
+            newReplacements[keep] = host;
+            return new Contents(keys, hosts, newReplacements);
+        }
+
+        Contents withoutReplacement(long key) {
+            for (int i = 0; i < replacements.length; i++) {
+                if (replacements[i].getKey() == key) {
+                    Host[] newReplacements = new Host[replacements.length - 1];
+                    System.arraycopy(replacements, 0, newReplacements, 0, i);
+                    System.arraycopy(replacements, i + 1, newReplacements, i, replacements.length - i - 1);
+                    return new Contents(keys, hosts, newReplacements);
+                }
+            }
+            return this;
+        }
 
+        // Moves the newest replacement into the bucket
+        Contents promote() {
+            if (replacements.length == 0) {
+                return this;
+            }
+            Host newest = replacements[replacements.length - 1];
+            return new Contents(keys, hosts, Arrays.copyOf(replacements, replacements.length - 1)).with(newest);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package edu.scu.kademlia;
 
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Map;
 
 public interface Client {
     /**
@@ -18,5 +19,20 @@ public interface Client {
 
     void store(long key, DataBlock data) throws RemoteException;
 
+    /**
+     * Stores several values at once
+     *
+     * @param entries The values to store by key
+     */
+    void storeBatch(Map<Long, DataBlock> entries) throws RemoteException;
+
+    /**
+     * Keeps a copy of a value this host is not responsible for, so lookups that pass by can be answered early
+     *
+     * @param key  The key of the value
+     * @param data The value
+     */
+    void cache(long key, DataBlock data) throws RemoteException;
+
     boolean ping() throws RemoteException;
 }
@@ -1,12 +1,134 @@
 package edu.scu.kademlia;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
+import lombok.EqualsAndHashCode;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
-@Data
-@AllArgsConstructor
-public class DataBlock implements Serializable {
-    int sampleValue;
+/**
+ * A value stored in the network: an arbitrary run of bytes. The payload buffer is never copied by the block itself,
+ * so a value read from a memory-mapped segment or a received message is a view of those bytes until it is written
+ * out again.
+ *
+ * On the wire and on disk a block is its length followed by its bytes. RMI uses the same layout through
+ * {@link Externalizable}.
+ */
+@EqualsAndHashCode
+public class DataBlock implements Externalizable {
+    // Always positioned at 0 and limited to the payload. Only read-only views of it are handed out.
+    private ByteBuffer payload;
+
+    /**
+     * Only for deserialization
+     */
+    public DataBlock() {
+        this.payload = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Wraps the remaining bytes of a buffer without copying them. The caller must not change them afterwards.
+     */
+    public DataBlock(ByteBuffer payload) {
+        this.payload = payload.slice();
+    }
+
+    /**
+     * Wraps an array without copying it. The caller must not change it afterwards.
+     */
+    public DataBlock(byte[] payload) {
+        this(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * A four byte block holding an int, as the sample values of the test harness do
+     */
+    public DataBlock(int sampleValue) {
+        this(ByteBuffer.allocate(Integer.BYTES).putInt(0, sampleValue));
+    }
+
+    /**
+     * @return a read-only view of the payload, positioned at its start
+     */
+    public ByteBuffer getPayload() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a copy of the payload
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public int size() {
+        return payload.remaining();
+    }
+
+    /**
+     * @return the first four bytes of the payload as an int
+     */
+    public int getSampleValue() {
+        return payload.getInt(0);
+    }
+
+    /**
+     * @return the number of bytes this block takes up on the wire
+     */
+    public int encodedSize() {
+        return Integer.BYTES + payload.remaining();
+    }
+
+    /**
+     * Writes the binary form of this block, encodedSize() bytes long, at the buffer's position
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(payload.remaining());
+        buffer.put(payload.duplicate());
+    }
+
+    /**
+     * Reads a block written by {@link #writeTo(ByteBuffer)} from the buffer's position. The block is a view of the
+     * buffer's bytes, not a copy.
+     */
+    public static DataBlock readFrom(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer payload = buffer.slice();
+        payload.limit(length);
+        buffer.position(buffer.position() + length);
+        return new DataBlock(payload);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(payload.remaining());
+        if (payload.hasArray()) {
+            out.write(payload.array(), payload.arrayOffset(), payload.remaining());
+        } else {
+            out.write(toByteArray());
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        this.payload = ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    public String toString() {
+        if (payload.remaining() == Integer.BYTES) {
+            return "DataBlock(sampleValue=" + getSampleValue() + ")";
+        }
+        return "DataBlock(" + payload.remaining() + " bytes)";
+    }
 }
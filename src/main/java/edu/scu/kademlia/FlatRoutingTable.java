@@ -0,0 +1,186 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A routing table that keeps its k-buckets in a flat array indexed by the length of the prefix a key shares with this
+ * host. Bucket i holds the hosts whose key first differs from ours at bit i, counting from the most significant of
+ * the bitLen bits in use, so finding the bucket of a key is a single {@link Long#numberOfLeadingZeros} instead of a
+ * walk down a tree. Buckets are created the first time a host lands in them.
+ *
+ * This host is not stored in any bucket; it is kept apart and reported wherever the tree would have reported it.
+ * Like the tree, only the low bitLen bits of a key are looked at.
+ *
+ * Safe for concurrent use. The set of buckets never changes shape, so each bucket's own lock is the only one taken
+ * and readers take none.
+ */
+public class FlatRoutingTable implements RoutingTable {
+
+    // The bits of the key to use
+    private final int bitLen;
+
+    // Selects the bitLen bits of a key that are in use
+    private final long keyMask;
+
+    // Our host information
+    private final Host self;
+
+    // Used by the buckets to check on their hosts
+    private final AsyncKademliaRPC rpc;
+
+    // Hosts dropped by any of the buckets for not answering a ping
+    private final LongAdder evictions = new LongAdder();
+
+    // The size of each bucket
+    @Getter
+    private final int ksize;
+
+    // buckets[i] holds the hosts sharing exactly i leading bits with self. Null until a host lands there.
+    private final AtomicReferenceArray<Bucket> buckets;
+
+    public FlatRoutingTable(int bitLen, Host self, int ksize, KademliaRPC rpc) {
+        this(bitLen, self, ksize, new BlockingAsyncRPC(rpc));
+    }
+
+    /**
+     * @param rpc used by the buckets to ping their hosts, such as the simulated network of {@link NetworkSimulator}
+     */
+    public FlatRoutingTable(int bitLen, Host self, int ksize, AsyncKademliaRPC rpc) {
+        this.bitLen = bitLen;
+        this.keyMask = bitLen == Long.SIZE ? -1L : (1L << bitLen) - 1;
+        this.self = self;
+        this.ksize = ksize;
+        this.rpc = rpc;
+        this.buckets = new AtomicReferenceArray<>(bitLen);
+    }
+
+    /**
+     * @return the index of the bucket a key belongs in, or -1 for our own key
+     */
+    private int bucketIndex(long key) {
+        long distance = (key ^ self.getKey()) & keyMask;
+        if (distance == 0) {
+            return -1;
+        }
+        return Long.numberOfLeadingZeros(distance) - (Long.SIZE - bitLen);
+    }
+
+    private Bucket bucketAt(int index) {
+        Bucket bucket = buckets.get(index);
+        if (bucket == null) {
+            buckets.compareAndSet(index, null, new Bucket(ksize, rpc, evictions));
+            bucket = buckets.get(index);
+        }
+        return bucket;
+    }
+
+    @Override
+    public void addHost(Host host) {
+        int index = bucketIndex(host.getKey());
+        if (index >= 0) {
+            bucketAt(index).addHost(host);
+        }
+    }
+
+    @Override
+    public void removeHost(Host host) {
+        int index = bucketIndex(host.getKey());
+        if (index >= 0 && buckets.get(index) != null) {
+            buckets.get(index).removeHost(host);
+        }
+    }
+
+    /**
+     * Our own key maps to the deepest bucket, which holds the hosts closest to us.
+     */
+    @Override
+    public Bucket getClosestBucket(long key) {
+        int index = bucketIndex(key);
+        return bucketAt(index >= 0 ? index : bitLen - 1);
+    }
+
+    /**
+     * Visits whole buckets in XOR distance order. Let c be the distance between our key and the target. Comparing
+     * bucket i with any deeper bucket at bit i shows bucket i is closer exactly when bit i of c is set. So the order
+     * is: buckets whose bit is set from shallow to deep, then this host, then buckets whose bit is clear from deep to
+     * shallow. Only the hosts of the buckets visited get sorted.
+     */
+    @Override
+    public List<Host> getClosestHosts(long key, int count, boolean matchSelf) {
+        List<Host> closest = new ArrayList<>(count);
+        long distance = (key ^ self.getKey()) & keyMask;
+        for (int i = 0; i < bitLen && closest.size() < count; i++) {
+            Bucket bucket = buckets.get(i);
+            if (isSet(distance, i) && bucket != null) {
+                bucket.addClosestTo(key, count, null, closest);
+            }
+        }
+        if (matchSelf && closest.size() < count) {
+            closest.add(self);
+        }
+        for (int i = bitLen - 1; i >= 0 && closest.size() < count; i--) {
+            Bucket bucket = buckets.get(i);
+            if (!isSet(distance, i) && bucket != null) {
+                bucket.addClosestTo(key, count, null, closest);
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Bucket i holds the keys that match ours in the i bits before bit i and differ at bit i; the bits after it are
+     * random.
+     */
+    @Override
+    public long randomKeyIn(Bucket bucket) {
+        for (int i = 0; i < bitLen; i++) {
+            if (buckets.get(i) == bucket) {
+                long differingBit = 1L << (bitLen - 1 - i);
+                long distance = differingBit | (ThreadLocalRandom.current().nextLong() & (differingBit - 1));
+                return (self.getKey() ^ distance) & keyMask;
+            }
+        }
+        throw new IllegalArgumentException("Not a bucket of this table");
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    // bit i counting from the most significant bit in use
+    private boolean isSet(long distance, int i) {
+        return ((distance >>> (bitLen - 1 - i)) & 1) != 0;
+    }
+
+    @Override
+    public List<Host> allHosts() {
+        List<Host> hosts = new ArrayList<>();
+        hosts.add(self);
+        for (int i = 0; i < bitLen; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null) {
+                hosts.addAll(bucket.getNodesInBucket());
+            }
+        }
+        return hosts;
+    }
+
+    @Override
+    public List<Bucket> getAllBuckets() {
+        List<Bucket> allBuckets = new ArrayList<>();
+        for (int i = 0; i < bitLen; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null) {
+                allBuckets.add(bucket);
+            }
+        }
+        return allBuckets;
+    }
+}
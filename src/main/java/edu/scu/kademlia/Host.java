@@ -16,9 +16,9 @@ public class Host implements Serializable {
     @Getter
     final int port;
 
-    //time stamp for each node, RPC can update this value
+    //time stamp for each node, updated whenever the node answers an RPC
     @Getter @Setter
-    private long mostRecentSeen;
+    private volatile long mostRecentSeen;
 
     public Host(String ip, long key, int port) {
         this.ip = ip;
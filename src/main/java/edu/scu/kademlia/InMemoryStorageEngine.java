@@ -0,0 +1,65 @@
+package edu.scu.kademlia;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps every value on the heap. Nothing survives a restart. Keys are kept in unsigned order so a range of them can
+ * be visited without touching the others.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+    private final ConcurrentNavigableMap<Long, DataBlock> values = new ConcurrentSkipListMap<>(Long::compareUnsigned);
+
+    // Payload bytes of the values in the map
+    private final AtomicLong bytes = new AtomicLong();
+
+    @Override
+    public void put(long key, DataBlock data) {
+        DataBlock previous = values.put(key, data);
+        bytes.addAndGet(data.size() - (previous == null ? 0 : previous.size()));
+    }
+
+    @Override
+    public DataBlock get(long key) {
+        return values.get(key);
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public long size() {
+        return values.size();
+    }
+
+    @Override
+    public long bytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        for (var entry : values.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void forEachInRange(long from, long to, EntryVisitor visitor) {
+        for (var entry : values.subMap(from, true, to, true).entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
@@ -0,0 +1,329 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One Kademlia lookup over a shortlist of the k closest hosts seen so far, driven by the answers as they arrive
+ * rather than by a thread waiting for them. {@link KademliaClient} and {@link NetworkSimulator} both run it, each
+ * saying how a query is sent, how time passes and what happens to the routing table.
+ *
+ * Queries go to the closest unqueried candidates, alpha at a time. When an answer brings back nothing closer than the
+ * best host already known, every remaining unqueried candidate is queried at once. The lookup ends when each of the
+ * k closest candidates has answered, or as soon as a host returns the value when findValue is set.
+ *
+ * With peer stats, each query times out after its peer's adaptive timeout, and a failed query's host only becomes
+ * unreachable once it has failed maxQueryFailures requests in a row. With hedge set, a findValue query still
+ * unanswered after its peer's 95th percentile round trip time gives up its slot, so the next candidate is asked too;
+ * whichever answers first is used. Without peer stats every query waits rpcTimeoutMillis and a host that fails one
+ * is unreachable.
+ *
+ * Answers may arrive on any thread. They are handled one at a time, and an answer arriving while another is being
+ * handled on the same thread, as a query that completes at once does, waits its turn rather than nesting.
+ */
+public abstract class IterativeLookup {
+    @Getter
+    private final long key;
+
+    @Getter
+    private final boolean findValue;
+
+    // The host running the lookup, one of the closest it knows of
+    private final Host self;
+
+    // The size of the shortlist and of the result
+    private final int ksize;
+
+    // Round trip times and failures of the peers, or null to know nothing about them
+    private final PeerStats peerStats;
+
+    // The number of queries kept in flight until an answer brings nothing closer
+    @Getter @Setter
+    private int alpha = KademliaClient.DEFAULT_ALPHA;
+
+    // How long a query to a peer without a known round trip time waits
+    @Getter @Setter
+    private long rpcTimeoutMillis = KademliaClient.DEFAULT_RPC_TIMEOUT_MILLIS;
+
+    // The shortest a query's adaptive timeout may be
+    @Getter @Setter
+    private long minRpcTimeoutMillis = KademliaClient.DEFAULT_MIN_RPC_TIMEOUT_MILLIS;
+
+    // How many requests in a row a host may fail before it is unreachable
+    @Getter @Setter
+    private int maxQueryFailures = KademliaClient.DEFAULT_MAX_QUERY_FAILURES;
+
+    // Whether a slow findValue query lets the lookup query another host
+    @Getter @Setter
+    private boolean hedge;
+
+    // Whether the faster of equally close hosts is queried first
+    @Getter @Setter
+    private boolean preferLowLatency;
+
+    // Records the path of the lookup if it is sampled, or null
+    @Getter @Setter
+    private LookupTracer tracer;
+
+    private Shortlist shortlist;
+    private final CompletableFuture<IterativeLookup> done = new CompletableFuture<>();
+
+    private int parallelism;
+    private int inFlight;
+
+    // queries sent and not answered yet, including the hedged ones
+    private final Set<Host> pending = new HashSet<>();
+
+    // queries that gave up their slot for a hedge
+    private final Set<Host> hedged = new HashSet<>();
+
+    // answers that came in while another was being handled on the same thread
+    private final Queue<Answer> answers = new ArrayDeque<>();
+    private boolean handling;
+
+    private long trace;
+    // when each query of a traced lookup was sent
+    private Map<Host, Long> sentAt;
+
+    private long startNanos;
+
+    @Getter
+    private long durationNanos;
+
+    @Getter
+    private int sent;
+
+    // Answers that brought a host closer than any known before
+    @Getter
+    private int hops;
+
+    // The host that returned the value, or null
+    @Getter
+    private Host target;
+
+    // The value, if a findValue lookup found it
+    @Getter
+    private DataBlock data;
+
+    // The k closest hosts that answered, this host included, closest first. When the value was found, the hosts that
+    // answered without it instead.
+    @Getter
+    private List<Host> hosts = List.of();
+
+    @Getter
+    private LookupTracer.End end;
+
+    protected IterativeLookup(long key, boolean findValue, Host self, int ksize, PeerStats peerStats) {
+        this.key = key;
+        this.findValue = findValue;
+        this.self = self;
+        this.ksize = ksize;
+        this.peerStats = peerStats;
+    }
+
+    /**
+     * Sends one query.
+     *
+     * @return completes with the answer, or exceptionally if the host could not be reached or did not answer in time
+     */
+    protected abstract CompletableFuture<HostSearchResult> query(Host target, long timeoutMillis);
+
+    /**
+     * @return the current time in nanoseconds, from any fixed origin
+     */
+    protected abstract long nanoTime();
+
+    /**
+     * Runs an action once delayNanos have passed.
+     */
+    protected abstract void schedule(long delayNanos, Runnable action);
+
+    /**
+     * Called for every host that answered a query.
+     */
+    protected abstract void reached(Host host);
+
+    /**
+     * Called for every host that failed a query and should leave the routing table.
+     */
+    protected abstract void unreachable(Host host);
+
+    /**
+     * Starts querying the closest of the known hosts.
+     *
+     * @return completes with this lookup once it has ended
+     */
+    public synchronized CompletableFuture<IterativeLookup> start(Collection<Host> known) {
+        startNanos = nanoTime();
+        trace = tracer == null ? 0 : tracer.begin(key, findValue);
+        sentAt = trace != 0 ? new HashMap<>() : null;
+        shortlist = new Shortlist(key, ksize, self, preferLowLatency ? peerStats : null);
+        shortlist.addAll(known);
+        parallelism = Math.max(1, alpha);
+        deliver(null);
+        return done;
+    }
+
+    // Handles an answer, and every answer that comes in on this thread meanwhile, then sends the queries they allow
+    private synchronized void deliver(Answer answer) {
+        if (answer != null) {
+            answers.add(answer);
+        }
+        if (handling) {
+            return;
+        }
+        handling = true;
+        try {
+            do {
+                Answer next = answers.poll();
+                if (next != null) {
+                    handle(next);
+                }
+                sendQueries();
+            } while (!answers.isEmpty());
+        } catch (RuntimeException e) {
+            answers.clear();
+            if (end == null) {
+                finished(LookupTracer.End.EXHAUSTED);
+            }
+            done.completeExceptionally(e);
+        } finally {
+            handling = false;
+        }
+    }
+
+    private void sendQueries() {
+        if (end != null) {
+            return;
+        }
+        Host next;
+        while (inFlight < parallelism && (next = shortlist.nextToQuery()) != null) {
+            Host queried = next;
+            shortlist.markContacted(queried);
+            pending.add(queried);
+            inFlight++;
+            sent++;
+            if (trace != 0) {
+                sentAt.put(queried, nanoTime());
+                tracer.sent(trace, queried);
+            }
+            long timeoutMillis = peerStats == null ? rpcTimeoutMillis
+                    : peerStats.timeoutMillis(queried.getKey(), minRpcTimeoutMillis, rpcTimeoutMillis);
+            query(queried, timeoutMillis).whenComplete((result, error) ->
+                    deliver(new Answer(queried, error == null ? result : null, false)));
+            if (findValue && hedge && peerStats != null) {
+                scheduleHedge(queried);
+            }
+        }
+
+        if (pending.isEmpty()) {
+            // this host counts as one of the closest it knows of
+            List<Host> closest = shortlist.respondedHosts();
+            closest.add(self);
+            closest.sort(KademliaClient.distanceComparator(key));
+            hosts = closest.subList(0, Math.min(ksize, closest.size()));
+            finished(closest.size() > ksize ? LookupTracer.End.CONVERGED : LookupTracer.End.EXHAUSTED);
+            done.complete(this);
+        }
+    }
+
+    // Reports the query to queried as slow once it is past the peer's 95th percentile, unless nothing is known yet
+    private void scheduleHedge(Host queried) {
+        long p95Nanos = peerStats.p95Nanos(queried.getKey());
+        if (p95Nanos < 0) {
+            return;
+        }
+        schedule(p95Nanos, () -> deliver(new Answer(queried, null, true)));
+    }
+
+    private void handle(Answer answer) {
+        if (end != null) {
+            return;
+        }
+        Host from = answer.target;
+        if (answer.slow) {
+            if (pending.contains(from) && hedged.add(from)) {
+                inFlight--;
+                if (trace != 0) {
+                    tracer.slow(trace, from);
+                }
+            }
+            return;
+        }
+        pending.remove(from);
+        if (!hedged.contains(from)) {
+            inFlight--;
+        }
+        if (answer.result == null) {
+            if (trace != 0) {
+                tracer.failed(trace, from, nanoTime() - sentAt.get(from));
+            }
+            shortlist.markFailed(from);
+            if (peerStats == null || peerStats.failedInARow(from.getKey(), maxQueryFailures)) {
+                unreachable(from);
+            }
+            return;
+        }
+
+        reached(from);
+        shortlist.markResponded(from);
+        if (answer.result.getData() != null) {
+            List<Host> without = shortlist.respondedHosts();
+            without.remove(from);
+            without.sort(KademliaClient.distanceComparator(key));
+            if (trace != 0) {
+                tracer.answered(trace, from, nanoTime() - sentAt.get(from), false);
+            }
+            target = from;
+            data = answer.result.getData();
+            hosts = without;
+            finished(LookupTracer.End.FOUND);
+            done.complete(this);
+            return;
+        }
+
+        Host closestBefore = shortlist.closest();
+        shortlist.addAll(answer.result.getNextHost());
+        boolean closer = closestBefore == null || !closestBefore.equals(shortlist.closest());
+        if (closer) {
+            hops++;
+        } else {
+            // nothing closer came back, so finish off the k closest in one round
+            parallelism = Math.max(parallelism, ksize);
+        }
+        if (trace != 0) {
+            tracer.answered(trace, from, nanoTime() - sentAt.get(from), closer);
+        }
+    }
+
+    private void finished(LookupTracer.End reason) {
+        end = reason;
+        durationNanos = nanoTime() - startNanos;
+        if (trace != 0) {
+            tracer.end(trace, reason, sent);
+        }
+    }
+
+    // The answer of one host, null if its query failed, or a note that its query is slow
+    private static class Answer {
+        final Host target;
+        final HostSearchResult result;
+        final boolean slow;
+
+        Answer(Host target, HostSearchResult result, boolean slow) {
+            this.target = target;
+            this.result = result;
+            this.slow = slow;
+        }
+    }
+}
@@ -1,27 +1,57 @@
 package edu.scu.kademlia;
 
 import lombok.Getter;
+import lombok.Setter;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.rmi.AlreadyBoundException;
-import java.rmi.ConnectException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 public class KademliaClient implements Client {
 
-    // The bits of the key to use
-    private int bitLen;
+    // Default number of findNode RPCs a lookup keeps in flight
+    public static final int DEFAULT_ALPHA = 3;
 
-    // The root of our route tree. Each node contains a kbucket.
-    private RouteNode kbucketTree;
+    // Default time to wait for a single RPC to answer
+    public static final long DEFAULT_RPC_TIMEOUT_MILLIS = 5000;
 
-    // The hosts in our address book. Points to hosts in the kbucket tree
+    // Default floor for the adaptive timeout of a lookup query
+    public static final long DEFAULT_MIN_RPC_TIMEOUT_MILLIS = 200;
+
+    // Default number of requests in a row a host may fail before a lookup drops it from the routing table
+    public static final int DEFAULT_MAX_QUERY_FAILURES = 3;
+
+    // Default upper bound on the size of one storeBatch RPC
+    public static final int DEFAULT_MAX_BATCH_BYTES = 256 * 1024;
+
+    // Default time between routing table snapshots
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_MILLIS = 60_000;
+
+    // Default time between checks for keys that are due to be republished
+    public static final long DEFAULT_REPUBLISH_TICK_MILLIS = 1000;
+
+    // Default time a bucket may go without activity before it is refreshed. Kademlia uses an hour.
+    public static final long DEFAULT_BUCKET_IDLE_MILLIS = 60 * 60 * 1000;
+
+    // Default time between checks for idle buckets
+    public static final long DEFAULT_BUCKET_REFRESH_TICK_MILLIS = 60_000;
+
+    // Default time a cached value is kept by a host that would be one of the k closest to its key
+    public static final long DEFAULT_CACHE_TTL_MILLIS = 60 * 60 * 1000;
+
+    // Default time between metrics snapshots printed by a started client
+    public static final long DEFAULT_METRICS_SNAPSHOT_INTERVAL_MILLIS = 60_000;
+
+    // The hosts in our address book
     @Getter
-    private Set<Bucket> allBuckets = new HashSet<>();
+    private RoutingTable routingTable;
 
     // Our host information
     private Host self;
@@ -29,29 +59,141 @@ public class KademliaClient implements Client {
     // interface to other nodes
     private KademliaRPC rpc;
 
-    // The local data we are saving
+    // non-blocking interface to other nodes, used where several RPCs go out at once
+    private AsyncKademliaRPC asyncRpc;
+
+    // Last-seen times and round trip times of the peers, learned from the RPCs sent through asyncRpc
     @Getter
-    private Map<Long, DataBlock> dataStore = new HashMap<>();
+    private final PeerStats peerStats = new PeerStats();
+
+    // Counters and histograms of this node, served over JMX once the client has started
+    @Getter
+    private final NodeMetrics metrics;
+
+    // Whether start registers the metrics with the platform MBean server
+    @Getter @Setter
+    private boolean exportMetrics = true;
+
+    // How often a started client prints a metrics snapshot, or 0 never to
+    @Getter @Setter
+    private long metricsSnapshotIntervalMillis = DEFAULT_METRICS_SNAPSHOT_INTERVAL_MILLIS;
+
+    // Records the path of a sample of the lookups, see LookupTracer.setSampleRate
+    @Getter
+    private final LookupTracer tracer = new LookupTracer();
+
+    // Whether lookups query the faster of equally close hosts first
+    @Getter @Setter
+    private boolean preferLowLatency = true;
+
+    // The local data we are saving. RMI serves calls on several threads, so it has to be concurrent.
+    @Getter
+    private StorageEngine dataStore;
+
+    // Values fetched from other hosts, and values other hosts asked us to cache
+    @Getter
+    private final ValueCache valueCache = new ValueCache();
+
+    // Whether get caches the values it finds, both here and at the closest host on the lookup path that lacked them
+    @Getter @Setter
+    private boolean cacheValues = true;
+
+    // How long a cached value is kept when no host we know of is closer to its key than we are. Every closer host
+    // halves it, so copies far from the key, which fewer lookups pass by, go away sooner.
+    @Getter @Setter
+    private long cacheTtlMillis = DEFAULT_CACHE_TTL_MILLIS;
+
+    // Whether concurrent lookups of the same key share one walk of the network
+    @Getter @Setter
+    private boolean coalesceLookups = true;
+
+    // The lookups in progress by key. Callers looking up a key already in here wait for that lookup instead.
+    private final ConcurrentMap<Long, CompletableFuture<List<Host>>> nodeLookups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, CompletableFuture<DataBlock>> valueLookups = new ConcurrentHashMap<>();
 
     // The size of each bucket
     private int ksize;
 
-    private Set<Long> recentStores = new HashSet<>();
+    // When each stored key is next republished
+    @Getter
+    private final RepublishScheduler republishScheduler = new RepublishScheduler();
+
+    // The number of concurrent RPCs a lookup may have outstanding
+    @Getter @Setter
+    private int alpha = DEFAULT_ALPHA;
+
+    // How long to wait for each RPC sent through asyncRpc. Lookup queries to peers with a known round trip time
+    // wait less, see PeerStats.timeoutMillis.
+    @Getter @Setter
+    private long rpcTimeoutMillis = DEFAULT_RPC_TIMEOUT_MILLIS;
+
+    // The shortest a lookup query's adaptive timeout may be
+    @Getter @Setter
+    private long minRpcTimeoutMillis = DEFAULT_MIN_RPC_TIMEOUT_MILLIS;
+
+    // How many requests in a row a host may fail before a lookup drops it. A lookup query only waits as long as the
+    // peer usually takes, so one that runs out may have caught a live host at a slow moment.
+    @Getter @Setter
+    private int maxQueryFailures = DEFAULT_MAX_QUERY_FAILURES;
+
+    // Whether a findValue query that is slower than its peer's 95th percentile lets the lookup query another host
+    @Getter @Setter
+    private boolean hedgeFindValue = true;
+
+    // Replication and republish split the values they send to a host into storeBatch RPCs of at most this many bytes
+    @Getter @Setter
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    // How often the republish scheduler is asked for due keys once the client has started
+    @Getter @Setter
+    private long republishTickMillis = DEFAULT_REPUBLISH_TICK_MILLIS;
+
+    // A bucket with no host heard from and no lookup into its range for this long gets refreshed
+    @Getter @Setter
+    private long bucketIdleMillis = DEFAULT_BUCKET_IDLE_MILLIS;
+
+    // How often the buckets are checked for idleness once the client has started
+    @Getter @Setter
+    private long bucketRefreshTickMillis = DEFAULT_BUCKET_REFRESH_TICK_MILLIS;
+
+    // Where the routing table is saved between runs, or null to always rebuild it from the introducer
+    @Getter @Setter
+    private Path snapshotFile;
+
+    // How often the routing table is saved to snapshotFile
+    @Getter @Setter
+    private long snapshotIntervalMillis = DEFAULT_SNAPSHOT_INTERVAL_MILLIS;
+
+    // Runs this node's background work. Its thread is only started once something is scheduled.
+    private final ScheduledExecutorService scheduler;
 
     private final RemoteClientImpl remoteClient;
 
     public KademliaClient(int bitLen, Host self, KademliaRPC rpc, int ksize, boolean useRemoteClient) {
-        this.bitLen = bitLen;
+        this(self, rpc, new TreeRoutingTable(bitLen, self, ksize, rpc), useRemoteClient);
+    }
+
+    public KademliaClient(Host self, KademliaRPC rpc, RoutingTable routingTable, boolean useRemoteClient) {
+        this(self, rpc, routingTable, new InMemoryStorageEngine(), useRemoteClient);
+    }
+
+    public KademliaClient(Host self, KademliaRPC rpc, RoutingTable routingTable, StorageEngine dataStore,
+                          boolean useRemoteClient) {
         this.self = self;
+        this.dataStore = dataStore;
         this.rpc = rpc;
-        this.ksize = ksize;
+        this.metrics = new NodeMetrics(this, self);
+        this.asyncRpc = new MeasuredAsyncRPC(new BlockingAsyncRPC(rpc), peerStats, metrics);
+        this.routingTable = routingTable;
+        this.ksize = routingTable.getKsize();
         this.remoteClient = useRemoteClient ? new RemoteClientImpl(this) : null;
-
-        kbucketTree = new RouteNode();
-        Bucket baseBucket = new Bucket(ksize, rpc);
-        kbucketTree.setKbucket(baseBucket);
-        allBuckets.add(baseBucket);
-        addHost(self);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kademlia-maintenance-" + self.getPort());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // values kept from an earlier run come due over the next interval
+        dataStore.forEach((key, data) -> republishScheduler.spread(key));
 
         if (useRemoteClient) {
             try {
@@ -64,12 +206,44 @@ public class KademliaClient implements Client {
         }
     }
 
+    /**
+     * Joins the network. When snapshotFile holds a saved routing table, the table is loaded first and this host can
+     * route right away; the saved hosts are pinged and the join lookup runs in the background. Without a snapshot the
+     * table is built by a lookup of our own key through the introducer before this returns.
+     *
+     * @param introducer a host already in the network, or null if this is the first one
+     */
     public void start(Host introducer) {
+        boolean warm = restoreSnapshot();
+        scheduler.scheduleWithFixedDelay(this::republishQuietly,
+                republishTickMillis, republishTickMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::refreshIdleBucketsQuietly,
+                bucketRefreshTickMillis, bucketRefreshTickMillis, TimeUnit.MILLISECONDS);
+        if (snapshotFile != null) {
+            scheduler.scheduleWithFixedDelay(this::saveSnapshotQuietly,
+                    snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (exportMetrics) {
+            metrics.register();
+        }
+        if (metricsSnapshotIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::printMetrics,
+                    metricsSnapshotIntervalMillis, metricsSnapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
         if (introducer == null) {
             return;
         }
         addHost(introducer);
 
+        if (warm) {
+            scheduler.execute(this::joinLookup);
+        } else {
+            joinLookup();
+        }
+    }
+
+    private void joinLookup() {
         List<Host> others = nodeLookup(self.key, true);
 
         for (Host other : others) {
@@ -77,250 +251,394 @@ public class KademliaClient implements Client {
         }
     }
 
-    public void removeHost(Host host) {
-        RouteNode targetNode = getClosestNode(host.getKey());
-        Bucket kbucket = targetNode.getKbucket().get();
-        kbucket.removeHost(host);
+    /**
+     * Stops the background work, saves the routing table if snapshotFile is set and withdraws the metrics from JMX.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        saveSnapshotQuietly();
+        metrics.unregister();
     }
 
     /**
-     * adds a host to the route tree
-     *
-     * @param host the host to add
+     * Writes every known host to snapshotFile.
      */
-    public void addHost(Host host) {
-        RouteNode targetNode = getClosestNode(host.getKey());
-        Bucket kbucket = targetNode.getKbucket().get();
-        boolean inOwnBucket = kbucket.contains(self);
-        boolean success = kbucket.addHost(host);
+    public void saveSnapshot() throws IOException {
+        List<Host> hosts = allHosts();
+        hosts.remove(self);
+        RoutingTableSnapshot.save(snapshotFile, hosts);
+    }
 
-        // if we failed to insert and the bucket contains this node
-        if (success) {
+    private void saveSnapshotQuietly() {
+        if (snapshotFile == null) {
             return;
         }
-
-        if (!inOwnBucket) {
-            return;
+        try {
+            saveSnapshot();
+        } catch (IOException e) {
+            System.err.println("Unable to save routing table snapshot: " + e);
         }
-
-        splitNode(targetNode);
-        addHost(host);
     }
 
+    /**
+     * Loads the hosts in snapshotFile into the routing table, least recently seen first so the buckets keep their
+     * order, and pings them all in the background. Hosts that do not answer are dropped again.
+     *
+     * @return whether any host was restored
+     */
+    private boolean restoreSnapshot() {
+        if (snapshotFile == null) {
+            return false;
+        }
+        List<Host> hosts;
+        try {
+            hosts = new ArrayList<>(RoutingTableSnapshot.load(snapshotFile));
+        } catch (IOException e) {
+            System.err.println("Unable to load routing table snapshot: " + e);
+            return false;
+        }
+        hosts.remove(self);
+        hosts.sort(Comparator.comparingLong(Host::getMostRecentSeen));
+        for (Host host : hosts) {
+            addHost(host);
+        }
 
-    private void splitNode(RouteNode node) {
-        Bucket oldBucket = node.getKbucket().get();
-        node.setKbucket(null);
-        allBuckets.remove(oldBucket);
-
-        RouteNode left = new RouteNode();
-        Bucket leftBucket = new Bucket(ksize, rpc);
-        left.setKbucket(leftBucket);
-        allBuckets.add(leftBucket);
-
-        RouteNode right = new RouteNode();
-        Bucket rightBucket = new Bucket(ksize, rpc);
-        right.setKbucket(rightBucket);
-        allBuckets.add(rightBucket);
-
-        node.setLeft(left);
-        node.setRight(right);
-
-        // add the hosts to the new buckets
-        for (Host host : oldBucket.getNodesInBucket()) {
-            Bucket kbucket = getClosestBucket(host.getKey());
-            kbucket.addHost(host);
+        for (Host host : hosts) {
+            asyncRpc.ping(host, rpcTimeoutMillis).whenComplete((alive, error) -> {
+                if (error == null && alive) {
+                    host.setMostRecentSeen(System.currentTimeMillis());
+                } else {
+                    removeHost(host);
+                }
+            });
         }
+        return !hosts.isEmpty();
     }
 
-    public List<Host> nodeLookup(long key, boolean isNew) {
-        // Pretend that alpha = 1
-        Deque<Host> toCheck = new ArrayDeque<>(getClosestHosts(key, ksize, !isNew));
-        Set<Host> checkedHosts = new HashSet<>();
-        checkedHosts.add(self);
-        while (!toCheck.isEmpty()) {
-            Host target = toCheck.removeFirst();
-            if (checkedHosts.contains(target)) {
-                continue;
-            }
-
+    public void removeHost(Host host) {
+        routingTable.removeHost(host);
+    }
 
-            List<Host> otherNodes;
-            try {
-                otherNodes = rpc.findNode(target, key, isNew);
-                addHost(target);
-            } catch (ConnectException e) {
-                removeHost(target);
-                otherNodes = List.of();
-            }
-            checkedHosts.add(target);
+    /**
+     * adds a host to the routing table
+     *
+     * @param host the host to add
+     */
+    public void addHost(Host host) {
+        routingTable.addHost(host);
+    }
 
-            for (Host other : otherNodes) {
-                toCheck.addLast(other);
-            }
+    /**
+     * Iteratively searches the network for the hosts closest to a key. Up to alpha findNode RPCs are kept in flight,
+     * and each response is merged into the shortlist as soon as it arrives, so a slow host only holds up its own query.
+     * A caller looking up a key that is already being looked up waits for that lookup and gets its result.
+     *
+     * @param key   the key to search for
+     * @param isNew whether this host is joining the network
+     * @return the k closest hosts that were reached
+     */
+    public List<Host> nodeLookup(long key, boolean isNew) {
+        if (isNew) {
+            // a join has the hosts asked hand over their keys, which a lookup that happens to be running did not
+            return iterativeLookup(key, true, false).getHosts();
         }
-
-        return checkedHosts.stream()
-                .sorted((host1, host2) -> (int) (getDist(key, host1.getKey()) - getDist(key, host2.getKey())))
-                .limit(ksize)
-                .collect(Collectors.toList());
+        // each caller gets its own list, since they share the lookup
+        return new ArrayList<>(coalesce(nodeLookups, key, () -> iterativeLookup(key, false, false).getHosts()));
     }
 
     /**
-     * Handles getting data from the network. If the data is on this machine, it returns it. If not, it begins to
-     * search the network calling findHost repeatedly until a result can be found or nothing.
+     * Handles getting data from the network. If the data is on this machine, stored or cached, it returns it. If not,
+     * it begins to search the network calling findValue on the closest hosts until a result can be found or the
+     * lookup converges. A value found this way is cached here, and at the closest host that answered the lookup
+     * without it, so the next read of it from here takes no hops and reads from elsewhere tend to stop a hop early.
+     * Concurrent reads of a key that is not here share one lookup.
      *
      * @param key the key to search for
      * @return the datablock if one could be found
      */
     public DataBlock get(long key) {
-        final DataBlock data = dataStore.get(key);
+        DataBlock data = dataStore.get(key);
+        if (data == null) {
+            data = valueCache.get(key);
+        }
         if (data != null) {
             return data;
         }
 
-        Deque<Host> toCheck = new ArrayDeque<>(getClosestHosts(key, ksize, false));
-        Set<Host> checkedHosts = new HashSet<>();
-        checkedHosts.add(self);
-        while (!toCheck.isEmpty()) {
-            Host target = toCheck.removeFirst();
-            if (checkedHosts.contains(target)) {
-                continue;
+        return coalesce(valueLookups, key, () -> findValueLookup(key));
+    }
+
+    // Looks a value up on the network and caches what it finds
+    private DataBlock findValueLookup(long key) {
+        IterativeLookup lookup = iterativeLookup(key, false, true);
+        DataBlock data = lookup.getData();
+        if (data != null && cacheValues) {
+            valueCache.put(key, data, cacheTtlMillis(key));
+            if (!lookup.getHosts().isEmpty()) {
+                // nobody waits on this, and a host that misses it only costs a later lookup a hop
+                asyncRpc.cache(lookup.getHosts().get(0), key, data, rpcTimeoutMillis);
             }
+        }
+        return data;
+    }
 
-            HostSearchResult result = null;
-            checkedHosts.add(target);
+    /**
+     * Runs a lookup, unless one for the same key is already in progress, in which case it waits for that one and
+     * returns its result. A lookup that fails fails every caller waiting on it.
+     */
+    private <T> T coalesce(ConcurrentMap<Long, CompletableFuture<T>> inFlight, long key, Supplier<T> lookup) {
+        if (!coalesceLookups) {
+            return lookup.get();
+        }
+        CompletableFuture<T> mine = new CompletableFuture<>();
+        CompletableFuture<T> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            metrics.lookupCoalesced();
             try {
-                result = rpc.findValue(target, key);
-                addHost(target);
-            } catch (ConnectException e) {
-                removeHost(target);
-                continue;
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
             }
+        }
 
-            if (result.getData() != null) {
-                return result.getData();
-            }
+        try {
+            T result = lookup.get();
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
 
-            for (Host other : result.getNextHost()) {
-                toCheck.addLast(other);
+    /**
+     * @return how long this host keeps a cached copy of the value of a key: cacheTtlMillis, halved for every host we
+     * know of that is closer to the key than we are
+     */
+    public long cacheTtlMillis(long key) {
+        long distance = self.getKey() ^ key;
+        int closer = 0;
+        for (Host host : getClosestHosts(key, ksize, false)) {
+            if (Long.compareUnsigned(host.getKey() ^ key, distance) < 0) {
+                closer++;
             }
         }
+        return cacheTtlMillis >> Math.min(closer, Long.SIZE - 1);
+    }
 
-        return null;
+    /**
+     * Runs an {@link IterativeLookup} with this client's settings and waits for it to end. Queries go out through
+     * asyncRpc, so each times out after its peer's adaptive timeout, and hosts that answer are added to the routing
+     * table. A query that fails is not retried by this lookup, and its host only leaves the routing table once it has
+     * failed maxQueryFailures requests in a row. findValue queries are hedged when hedgeFindValue is set.
+     */
+    private IterativeLookup iterativeLookup(long key, boolean isNew, boolean findValue) {
+        getClosestBucket(key).touch();
+        IterativeLookup lookup = new ClientLookup(key, isNew, findValue);
+        lookup.setAlpha(alpha);
+        lookup.setRpcTimeoutMillis(rpcTimeoutMillis);
+        lookup.setMinRpcTimeoutMillis(minRpcTimeoutMillis);
+        lookup.setMaxQueryFailures(maxQueryFailures);
+        lookup.setHedge(hedgeFindValue);
+        lookup.setPreferLowLatency(preferLowLatency);
+        lookup.setTracer(tracer);
+        try {
+            lookup.start(getClosestHosts(key, ksize, false)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during lookup", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        metrics.lookupFinished(lookup.getDurationNanos(), lookup.getSent(), lookup.getHops());
+        return lookup;
     }
 
     public void put(long key, DataBlock data) {
-        List<Host> targets = nodeLookup(key, false); // this should get stored to k nodes but right now its just 1
+        List<Host> targets = nodeLookup(key, false);
 
+        // store to the k closest hosts in parallel and wait for all of them to answer
+        Map<Host, CompletableFuture<Boolean>> stores = new HashMap<>();
         for (Host target : targets) {
             if (target.equals(this.self)) {
                 store(key, data);
             } else {
-                try {
-                    rpc.store(target, key, data);
-                } catch (ConnectException e) {
-                    removeHost(target);
-                }
+                stores.put(target, asyncRpc.store(target, key, data, rpcTimeoutMillis)
+                        .handle((ignored, error) -> error == null));
             }
         }
-    }
-
-    public void replicateClosest(Host target) {
-        for(var entry : dataStore.entrySet()) {
-            Host closest = getClosestHosts(entry.getKey(), 2, true)
-                    .stream()
-                    .filter(host -> !host.equals(target))
-                    .findFirst()
-                    .get();
 
-            if (!closest.equals(self)) {
-                continue;
+        for (var entry : stores.entrySet()) {
+            if (!entry.getValue().join()) {
+                removeHost(entry.getKey());
             }
+        }
+    }
 
-            try {
-                rpc.store(target, entry.getKey(), entry.getValue());
-            } catch (ConnectException e) {
+    /**
+     * Hands a joining host the values it is now one of the k closest hosts for and that this host is the closest
+     * other holder of, see {@link Replication#handoff}.
+     *
+     * The values go out over the async RPC, so the caller, often the thread that answered the newcomer's query, is not
+     * held up by the transfer.
+     *
+     * @return completes once every batch has been answered or has failed
+     */
+    public CompletableFuture<Void> replicateClosest(Host target) {
+        List<Map.Entry<Long, DataBlock>> handoff = Replication.handoff(routingTable, dataStore, self, target);
+        return storeInBatches(target, handoff, metrics.replicated()).thenAccept(sent -> {
+            if (!sent) {
                 removeHost(target);
-                break;
             }
+        });
+    }
+
+    /**
+     * Sends values to a host using as few storeBatch RPCs as maxBatchBytes allows, see {@link Replication#batches}.
+     * The batches go out at once, each with its own rpcTimeoutMillis deadline.
+     *
+     * @param transfer counts the values that were sent
+     *
+     * @return completes with false if any batch did not reach the host
+     */
+    private CompletableFuture<Boolean> storeInBatches(Host host, List<Map.Entry<Long, DataBlock>> entries,
+                                                      NodeMetrics.Transfer transfer) {
+        List<CompletableFuture<Boolean>> sends = new ArrayList<>();
+        for (Map<Long, DataBlock> batch : Replication.batches(entries, maxBatchBytes)) {
+            sends.add(sendBatch(host, batch, transfer));
         }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> sends.stream().allMatch(CompletableFuture::join));
+    }
+
+    // The RPC metrics are recorded by asyncRpc
+    private CompletableFuture<Boolean> sendBatch(Host host, Map<Long, DataBlock> batch,
+                                                 NodeMetrics.Transfer transfer) {
+        return asyncRpc.storeBatch(host, batch, rpcTimeoutMillis).handle((ignored, error) -> {
+            if (error != null) {
+                return false;
+            }
+            transfer.sent(batch);
+            return true;
+        });
     }
 
     public boolean hasData(long key) {
-        return dataStore.containsKey(key);
+        return dataStore.contains(key);
     }
 
     public List<Host> allHosts() {
-        return allBuckets.stream()
-                .flatMap(bucket -> bucket.getNodesInBucket().stream())
-                .collect(Collectors.toList());
+        return routingTable.allHosts();
+    }
+
+    public Collection<Bucket> getAllBuckets() {
+        return routingTable.getAllBuckets();
     }
 
+    /**
+     * @param key       the key to measure distance from
+     * @param count     the maximum number of hosts to return
+     * @param matchSelf whether this host may be part of the result
+     * @return up to count hosts, closest first
+     */
     public List<Host> getClosestHosts(long key, int count, boolean matchSelf) {
-        return allHosts().stream()
-                .sorted((host1, host2) -> (int) (getDist(key, host1.getKey()) - getDist(key, host2.getKey())))
-                .filter(host -> !(host.equals(self) && !matchSelf))
-                .limit(count)
-                .collect(Collectors.toList());
+        return routingTable.getClosestHosts(key, count, matchSelf);
     }
 
-    private long getDist(long host1, long host2) {
-        long dist = host1 ^ host2;
-        dist += Integer.MAX_VALUE;
-        return dist;
+    /**
+     * Orders hosts by their XOR distance to a key. Distances are compared as unsigned values so that keys with the
+     * top bit set sort correctly.
+     *
+     * @param key the key to measure distance from
+     * @return a comparator placing the closest host first
+     */
+    public static Comparator<Host> distanceComparator(long key) {
+        return (host1, host2) -> Long.compareUnsigned(host1.getKey() ^ key, host2.getKey() ^ key);
     }
 
     public Bucket getClosestBucket(long key) {
-        return getClosestNode(key).getKbucket().get();
+        return routingTable.getClosestBucket(key);
     }
 
-    public RouteNode getClosestNode(long key) {
-        RouteNode currNode = kbucketTree;
-        for (int i = 0; i < bitLen; i++) {
-            long dir = getBit(key, bitLen - i - 1);
-            Optional<RouteNode> nextNode;
-
-            // check branch
-            if (dir == 0) {
-                nextNode = currNode.getLeft();
-            } else {
-                nextNode = currNode.getRight();
-            }
-
-            // if there is a next node, get the next node in the chain
-            // else return this result
-            if (nextNode.isPresent()) {
-                currNode = nextNode.get();
-            } else {
-                break;
-            }
+    /**
+     * Republishes the keys the republish scheduler says are due, as many as its rate limit allows. Each key goes to
+     * the k hosts closest to it in our routing table, see {@link Replication#republish}, and the values bound for one
+     * host share storeBatch RPCs. Runs every republishTickMillis once the client has started.
+     *
+     * @return completes once every host has answered or failed
+     */
+    public CompletableFuture<Void> republish() {
+        Map<Host, List<Map.Entry<Long, DataBlock>>> byHost =
+                Replication.republish(routingTable, dataStore, republishScheduler);
+
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        for (var entry : byHost.entrySet()) {
+            Host host = entry.getKey();
+            sends.add(storeInBatches(host, entry.getValue(), metrics.republished()).thenAccept(sent -> {
+                if (!sent) {
+                    removeHost(host);
+                }
+            }));
         }
-        return currNode;
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture[0]));
     }
 
-    private long getBit(long v, int id) {
-        return (v >> id) & 1;
+    private void republishQuietly() {
+        try {
+            republish();
+        } catch (RuntimeException e) {
+            // stop() interrupts whatever is running, which is not worth reporting
+            if (!scheduler.isShutdown()) {
+                System.err.println("Republish failed: " + e);
+            }
+        }
     }
 
-    public void republish() {
-        Bucket selfBucket = getClosestBucket(self.getKey());
-        selfBucket.refreshBucket();
+    /**
+     * Refreshes every bucket that has been idle for longer than bucketIdleMillis: its hosts are all pinged at once,
+     * the ones that do not answer are replaced, and a lookup of a random key in its range finds hosts to fill it.
+     * Active buckets are left alone. Runs every bucketRefreshTickMillis once the client has started.
+     */
+    public void refreshIdleBuckets() {
+        long idleSince = System.currentTimeMillis() - bucketIdleMillis;
+        Map<Bucket, CompletableFuture<Void>> checks = new HashMap<>();
+        for (Bucket bucket : getAllBuckets()) {
+            if (bucket.getLastActive() < idleSince) {
+                bucket.touch();
+                checks.put(bucket, bucket.refreshBucket());
+            }
+        }
 
-        for (var entry : dataStore.entrySet()) {
-            if (recentStores.contains(entry.getKey())) {
+        for (Bucket bucket : checks.keySet()) {
+            long key;
+            try {
+                key = routingTable.randomKeyIn(bucket);
+            } catch (IllegalArgumentException e) {
+                // split since, and the new buckets start out active
                 continue;
             }
-            for (Host host : selfBucket.getNodesInBucket()) {
-                try {
-                    rpc.store(host, entry.getKey(), entry.getValue());
-                } catch (ConnectException e) {
-                    removeHost(host);
-                }
-            }
+            nodeLookup(key, false);
         }
+        CompletableFuture.allOf(checks.values().toArray(new CompletableFuture[0])).join();
+    }
 
-        recentStores.clear();
+    private void refreshIdleBucketsQuietly() {
+        try {
+            refreshIdleBuckets();
+        } catch (RuntimeException e) {
+            // stop() interrupts whatever is running, which is not worth reporting
+            if (!scheduler.isShutdown()) {
+                System.err.println("Bucket refresh failed: " + e);
+            }
+        }
     }
 
     @Override
@@ -330,16 +648,36 @@ public class KademliaClient implements Client {
 
     @Override
     public HostSearchResult findValue(long key) {
-        if (this.hasData(key)) {
-            return new HostSearchResult(this.get(key));
+        DataBlock data = dataStore.get(key);
+        if (data == null) {
+            data = valueCache.get(key);
+        }
+        if (data != null) {
+            return new HostSearchResult(data);
         }
         return new HostSearchResult(this.getClosestHosts(key, ksize, true));
     }
 
     @Override
     public void store(long key, DataBlock data) {
-        recentStores.add(key);
         dataStore.put(key, data);
+        valueCache.remove(key);
+        // whoever stored it here just published it
+        republishScheduler.published(key);
+    }
+
+    @Override
+    public void storeBatch(Map<Long, DataBlock> entries) {
+        for (var entry : entries.entrySet()) {
+            store(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void cache(long key, DataBlock data) {
+        if (cacheValues && !dataStore.contains(key)) {
+            valueCache.put(key, data, cacheTtlMillis(key));
+        }
     }
 
     @Override
@@ -354,31 +692,59 @@ public class KademliaClient implements Client {
         }
     }
 
+    /**
+     * Prints the lookups traced so far, see {@link LookupTracer}.
+     */
+    public void printTraces() {
+        System.out.println("[" + self.ip + "] Traces:");
+        System.out.print(tracer.dump());
+    }
+
+    public void printMetrics() {
+        System.out.println("[" + self.ip + "] Metrics: " + metrics.snapshot());
+    }
+
     public void printDataStore() {
         System.out.println("[" + self.ip + "] DataStore:");
-        for(var entry : dataStore.entrySet()) {
-            System.out.println("[" + self.ip + "]\t\t" + entry.getKey() + " -> " + entry.getValue().sampleValue);
-        }
+        dataStore.forEach((key, data) ->
+                System.out.println("[" + self.ip + "]\t\t" + key + " -> " + data));
     }
 
-    private static class RouteNode {
-        @Getter
-        Optional<Bucket> kbucket = Optional.empty(); // right now the bucket can only have 1 element. k=1 (I think)
-        @Getter
-        Optional<RouteNode> left = Optional.empty(); // 0 branch
-        @Getter
-        Optional<RouteNode> right = Optional.empty(); // 1 branch
+    // A lookup sending its queries through asyncRpc and adding the hosts that answer to the routing table
+    private class ClientLookup extends IterativeLookup {
+        private final boolean isNew;
+
+        ClientLookup(long key, boolean isNew, boolean findValue) {
+            super(key, findValue, self, ksize, peerStats);
+            this.isNew = isNew;
+        }
+
+        @Override
+        protected CompletableFuture<HostSearchResult> query(Host target, long timeoutMillis) {
+            if (isFindValue()) {
+                return asyncRpc.findValue(target, getKey(), timeoutMillis);
+            }
+            return asyncRpc.findNode(target, getKey(), isNew, timeoutMillis).thenApply(HostSearchResult::new);
+        }
+
+        @Override
+        protected void schedule(long delayNanos, Runnable action) {
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS).execute(action);
+        }
 
-        public void setKbucket(Bucket kbucket) {
-            this.kbucket = Optional.ofNullable(kbucket);
+        @Override
+        protected void reached(Host host) {
+            addHost(host);
         }
 
-        public void setLeft(RouteNode left) {
-            this.left = Optional.ofNullable(left);
+        @Override
+        protected void unreachable(Host host) {
+            removeHost(host);
         }
 
-        public void setRight(RouteNode right) {
-            this.right = Optional.ofNullable(right);
+        @Override
+        protected long nanoTime() {
+            return System.nanoTime();
         }
     }
 }
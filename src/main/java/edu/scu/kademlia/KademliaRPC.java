@@ -2,6 +2,7 @@ package edu.scu.kademlia;
 
 import java.rmi.ConnectException;
 import java.util.List;
+import java.util.Map;
 
 public interface KademliaRPC {
 
@@ -21,5 +22,18 @@ public interface KademliaRPC {
 
     void store(Host host, long key, DataBlock data) throws ConnectException;
 
+    /**
+     * @param host    The host to send this RPC to
+     * @param entries The values to store on the host by key
+     */
+    void storeBatch(Host host, Map<Long, DataBlock> entries) throws ConnectException;
+
+    /**
+     * @param host The host to send this RPC to
+     * @param key  The key of the value
+     * @param data The value for the host to keep a cached copy of
+     */
+    void cache(Host host, long key, DataBlock data) throws ConnectException;
+
     boolean ping(Host host);
 }
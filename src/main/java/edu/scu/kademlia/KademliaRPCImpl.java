@@ -1,65 +1,166 @@
 package edu.scu.kademlia;
 
+import lombok.Getter;
+import lombok.Setter;
+
+import java.rmi.ConnectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.registry.LocateRegistry;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class KademliaRPCImpl implements KademliaRPC {
-    private final RemoteClient getStub(Host host) {
+    // Default time a resolved stub is reused before it is looked up again
+    public static final long DEFAULT_STUB_TTL_MILLIS = 60_000;
+
+    // Default number of stubs kept before the least recently used one is dropped
+    public static final int DEFAULT_MAX_CACHED_STUBS = 1024;
+
+    @Getter @Setter
+    private long stubTtlMillis = DEFAULT_STUB_TTL_MILLIS;
+
+    @Getter @Setter
+    private int maxCachedStubs = DEFAULT_MAX_CACHED_STUBS;
+
+    // Resolved stubs by host key, in least recently used order
+    private final Map<Long, CachedStub> stubs = new LinkedHashMap<Long, CachedStub>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CachedStub> eldest) {
+            return size() > maxCachedStubs;
+        }
+    };
+
+    private final AtomicLong stubHits = new AtomicLong();
+
+    private final AtomicLong stubMisses = new AtomicLong();
+
+    /**
+     * Returns the stub for a host, reusing a cached one while it is younger than the TTL so that most RPCs skip the
+     * registry lookup.
+     */
+    private RemoteClient getStub(Host host) throws RemoteException {
+        final long now = System.currentTimeMillis();
+        synchronized (stubs) {
+            final CachedStub cached = stubs.get(host.key);
+            if (cached != null && cached.expiresAt > now) {
+                stubHits.incrementAndGet();
+                return cached.stub;
+            }
+        }
+        stubMisses.incrementAndGet();
+
+        final RemoteClient stub;
         try {
             final Registry registry = LocateRegistry.getRegistry(null);
-            return (RemoteClient)registry.lookup(Long.toString(host.key));
+            stub = (RemoteClient)registry.lookup(Long.toString(host.key));
         } catch (RemoteException exception) {
             System.err.println("Unable to get registry from LocateRegistry while getting stub.");
+            throw exception;
         } catch (NotBoundException exception) {
             System.err.println("Unable to lookup implementation in registry.");
+            throw new ConnectException("Host " + host.key + " is not bound in the registry");
         }
-        return null;
+
+        synchronized (stubs) {
+            stubs.put(host.key, new CachedStub(stub, now + stubTtlMillis));
+        }
+        return stub;
+    }
+
+    /**
+     * Drops the cached stub of a host whose call failed, so the next call resolves it again.
+     */
+    private void evictStub(Host host) {
+        synchronized (stubs) {
+            stubs.remove(host.key);
+        }
+    }
+
+    /**
+     * @return the number of RPCs that reused a cached stub
+     */
+    public long getStubHits() {
+        return stubHits.get();
+    }
+
+    /**
+     * @return the number of RPCs that had to look their stub up in the registry
+     */
+    public long getStubMisses() {
+        return stubMisses.get();
     }
 
     @Override
-    public List<Host> findNode(Host host, long key, boolean isNew) {
-        System.out.println("Sending remote findNode");
+    public List<Host> findNode(Host host, long key, boolean isNew) throws ConnectException {
         try {
             return getStub(host).findNode(key);
         } catch (RemoteException exception) {
-            exception.printStackTrace();
-            return new ArrayList<Host>();
+            evictStub(host);
+            throw new ConnectException("Remote findNode to host " + host.key + " failed", exception);
         }
     }
 
     @Override
-    public HostSearchResult findValue(Host host, long key) {
-        System.out.println("Sending remote findValue");
+    public HostSearchResult findValue(Host host, long key) throws ConnectException {
         try {
             return getStub(host).findValue(key);
         } catch (RemoteException exception) {
-            exception.printStackTrace();
-            return null;
+            evictStub(host);
+            throw new ConnectException("Remote findValue to host " + host.key + " failed", exception);
         }
     }
 
     @Override
-    public void store(Host host, long key, DataBlock data) {
-        System.out.println("Sending remote store");
+    public void store(Host host, long key, DataBlock data) throws ConnectException {
         try {
             getStub(host).store(key, data);
         } catch (RemoteException exception) {
-            exception.printStackTrace();
+            evictStub(host);
+            throw new ConnectException("Remote store to host " + host.key + " failed", exception);
+        }
+    }
+
+    @Override
+    public void storeBatch(Host host, Map<Long, DataBlock> entries) throws ConnectException {
+        try {
+            getStub(host).storeBatch(entries);
+        } catch (RemoteException exception) {
+            evictStub(host);
+            throw new ConnectException("Remote storeBatch to host " + host.key + " failed", exception);
+        }
+    }
+
+    @Override
+    public void cache(Host host, long key, DataBlock data) throws ConnectException {
+        try {
+            getStub(host).cache(key, data);
+        } catch (RemoteException exception) {
+            evictStub(host);
+            throw new ConnectException("Remote cache to host " + host.key + " failed", exception);
         }
     }
 
     @Override
     public boolean ping(Host host) {
-        System.out.println("Sending remote ping");
         try {
             return getStub(host).ping();
         } catch (RemoteException exception) {
-            exception.printStackTrace();
+            evictStub(host);
             return false;
         }
     }
+
+    private static class CachedStub {
+        final RemoteClient stub;
+        final long expiresAt;
+
+        CachedStub(RemoteClient stub, long expiresAt) {
+            this.stub = stub;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
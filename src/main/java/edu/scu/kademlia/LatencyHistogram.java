@@ -0,0 +1,106 @@
+package edu.scu.kademlia;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies in nanoseconds or hop counts. Each power of two is
+ * split into SUB_BUCKETS equal buckets, so any percentile it reports is at most a quarter above the true value
+ * whatever the range, the way HdrHistogram trades precision for a fixed size. Recording is a few atomic increments
+ * and never blocks, so it can sit on every RPC. The buckets are allocated by the first value recorded, so a node
+ * keeps no room for the RPCs it never sends.
+ */
+public class LatencyHistogram {
+    // Sub-buckets per power of two
+    private static final int SUB_BUCKETS = 4;
+
+    // Bucket i counts values from bucketFloor(i) up to bucketFloor(i + 1). Null until a value is recorded.
+    private final AtomicReference<AtomicLongArray> counts = new AtomicReference<>();
+
+    private final LongAdder total = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        AtomicLongArray buckets = counts.get();
+        if (buckets == null) {
+            counts.compareAndSet(null, new AtomicLongArray(Long.SIZE * SUB_BUCKETS));
+            buckets = counts.get();
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long count() {
+        return total.sum();
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if there are none
+     */
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return the value below which the given share of the recorded values fall, overstated by at most a quarter, or
+     * -1 if there are none
+     */
+    public long percentile(double quantile) {
+        AtomicLongArray buckets = counts.get();
+        if (buckets == null) {
+            return -1;
+        }
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        if (count == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketFloor(i + 1), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int fraction = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return exponent * SUB_BUCKETS + fraction;
+    }
+
+    private static long bucketFloor(int bucket) {
+        int exponent = bucket / SUB_BUCKETS;
+        if (exponent < 2) {
+            return bucket;
+        }
+        if (exponent >= Long.SIZE - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << exponent) + ((long) (bucket % SUB_BUCKETS) << (exponent - 2));
+    }
+}
@@ -0,0 +1,55 @@
+package edu.scu.kademlia;
+
+import java.util.Random;
+
+/**
+ * How long a message takes to cross the simulated network of {@link NetworkSimulator}. Each message gets its own
+ * delay, drawn from the simulator's seeded random number generator so that a run can be repeated exactly.
+ */
+public interface LatencyModel {
+
+    /**
+     * @return the one-way delay of a message in nanoseconds
+     */
+    long sampleNanos(Random random);
+
+    /**
+     * Every message takes the same time.
+     */
+    static LatencyModel constant(double millis) {
+        long nanos = toNanos(millis);
+        return random -> nanos;
+    }
+
+    /**
+     * Delays spread evenly between the two bounds.
+     */
+    static LatencyModel uniform(double minMillis, double maxMillis) {
+        long min = toNanos(minMillis);
+        long spread = toNanos(maxMillis) - min;
+        return random -> min + (long) (random.nextDouble() * spread);
+    }
+
+    /**
+     * A fixed propagation delay plus an exponentially distributed queueing delay.
+     */
+    static LatencyModel exponential(double minMillis, double meanExtraMillis) {
+        long min = toNanos(minMillis);
+        double mean = toNanos(meanExtraMillis);
+        return random -> min + (long) (-mean * Math.log(1 - random.nextDouble()));
+    }
+
+    /**
+     * Delays whose logarithm is normally distributed: most messages take about the median, and a long tail takes many
+     * times that, the way round trip times across the internet are usually spread. A sigma of 0.5 puts the 99th
+     * percentile at about three times the median.
+     */
+    static LatencyModel logNormal(double medianMillis, double sigma) {
+        double median = toNanos(medianMillis);
+        return random -> (long) (median * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    private static long toNanos(double millis) {
+        return (long) (millis * 1_000_000);
+    }
+}
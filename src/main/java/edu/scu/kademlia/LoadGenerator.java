@@ -0,0 +1,604 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures puts and gets end to end over RMI, with every node in its own JVM. The coordinator starts an RMI registry
+ * unless one is running already, launches the nodes on loopback, has the first one start the network and the others
+ * join through it, tells each node about all the others and has them store the values the gets will read. Then every
+ * node sends its share of the load for warmupSeconds and then durationSeconds, and the coordinator writes throughput
+ * and latency percentiles of the operations due after the warmup as CSV or JSON. The warmup gives the node JVMs time
+ * to compile the hot paths; lookups stalled by that can outlast the RPC timeouts and miss values that are there.
+ *
+ * The load is open-loop: operations arrive at random, at rate per second in all, whether or not the earlier ones have
+ * finished. Each is timed from when it was due rather than when a worker got to it, so a node that falls behind shows
+ * up as latency instead of quietly lowering the rate.
+ *
+ * The coordinator talks to the nodes over their standard input and output: a node prints READY once it has joined,
+ * LOADED once it knows every other node and has stored its values, and DONE once its load has run, and leaves on exit.
+ *
+ * Usage: LoadGenerator [--nodes=4] [--rate=200] [--warmupSeconds=5] [--durationSeconds=30] [--getRatio=0.9]
+ * [--keys=1000] [--valueBytes=1024] [--ksize=20] [--workers=32] [--basePort=9100] [--seed=1] [--cacheValues=false]
+ * [--format=csv|json] [--out=file]
+ */
+public class LoadGenerator {
+    // Default number of node processes
+    public static final int DEFAULT_NODES = 4;
+
+    // Default operations per second, over all nodes
+    public static final double DEFAULT_RATE = 200;
+
+    public static final int DEFAULT_WARMUP_SECONDS = 5;
+
+    public static final int DEFAULT_DURATION_SECONDS = 30;
+
+    // Default share of the operations that are gets, the rest being puts
+    public static final double DEFAULT_GET_RATIO = 0.9;
+
+    // Default number of distinct keys read and written
+    public static final int DEFAULT_KEYS = 1000;
+
+    public static final int DEFAULT_VALUE_BYTES = 1024;
+
+    public static final int DEFAULT_KSIZE = 20;
+
+    // Default number of threads per node carrying out operations. Arrivals beyond that wait, and the wait counts.
+    public static final int DEFAULT_WORKERS = 32;
+
+    // Default port of the first node. Node i listens on basePort + i.
+    public static final int DEFAULT_BASE_PORT = 9100;
+
+    // How long the coordinator waits for a node to report each step
+    private static final long STEP_TIMEOUT_SECONDS = 300;
+
+    private static final String READY = "READY";
+    private static final String LOADED = "LOADED";
+    private static final String DONE = "DONE";
+
+    @Getter @Setter
+    private int nodes = DEFAULT_NODES;
+
+    @Getter @Setter
+    private double rate = DEFAULT_RATE;
+
+    // How long the load runs before its operations are measured
+    @Getter @Setter
+    private int warmupSeconds = DEFAULT_WARMUP_SECONDS;
+
+    @Getter @Setter
+    private int durationSeconds = DEFAULT_DURATION_SECONDS;
+
+    @Getter @Setter
+    private double getRatio = DEFAULT_GET_RATIO;
+
+    @Getter @Setter
+    private int keys = DEFAULT_KEYS;
+
+    @Getter @Setter
+    private int valueBytes = DEFAULT_VALUE_BYTES;
+
+    @Getter @Setter
+    private int ksize = DEFAULT_KSIZE;
+
+    @Getter @Setter
+    private int workers = DEFAULT_WORKERS;
+
+    @Getter @Setter
+    private int basePort = DEFAULT_BASE_PORT;
+
+    // Picks the keys of the nodes and values, and the operations each node sends
+    @Getter @Setter
+    private long seed = 1;
+
+    // Whether gets cache the values they fetch. Off by default, so that every get measures the network.
+    @Getter @Setter
+    private boolean cacheValues;
+
+    // "csv" or "json"
+    @Getter @Setter
+    private String format = "csv";
+
+    // Where the report goes, or null for standard output
+    @Getter @Setter
+    private Path out;
+
+    // The node this process runs, or -1 for the coordinator
+    private int node = -1;
+
+    // Where a node writes its samples
+    private Path results;
+
+    /**
+     * The latencies of one kind of operation, or of all of them.
+     */
+    public static class Result {
+        @Getter
+        private final String operation;
+
+        @Getter
+        private final int count;
+
+        @Getter
+        private final int errors;
+
+        // Gets that found no value
+        @Getter
+        private final int misses;
+
+        @Getter
+        private final double throughput;
+
+        // Sorted latencies in nanoseconds
+        private final long[] latencies;
+
+        Result(String operation, long[] latencies, int errors, int misses, double seconds) {
+            this.operation = operation;
+            this.count = latencies.length;
+            this.errors = errors;
+            this.misses = misses;
+            this.throughput = seconds > 0 ? count / seconds : 0;
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+        }
+
+        /**
+         * @return the latency in milliseconds that the given share of the operations stayed within, or 0 if there
+         * were none
+         */
+        public double percentileMillis(double quantile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(quantile * latencies.length);
+            return latencies[Math.max(0, rank - 1)] / 1e6;
+        }
+
+        public double meanMillis() {
+            return latencies.length == 0 ? 0 : Arrays.stream(latencies).average().getAsDouble() / 1e6;
+        }
+
+        public double maxMillis() {
+            return latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6;
+        }
+    }
+
+    /**
+     * Sets the options given as --name=value.
+     */
+    public LoadGenerator configure(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "nodes": nodes = Integer.parseInt(value); break;
+                case "rate": rate = Double.parseDouble(value); break;
+                case "warmupSeconds": warmupSeconds = Integer.parseInt(value); break;
+                case "durationSeconds": durationSeconds = Integer.parseInt(value); break;
+                case "getRatio": getRatio = Double.parseDouble(value); break;
+                case "keys": keys = Integer.parseInt(value); break;
+                case "valueBytes": valueBytes = Integer.parseInt(value); break;
+                case "ksize": ksize = Integer.parseInt(value); break;
+                case "workers": workers = Integer.parseInt(value); break;
+                case "basePort": basePort = Integer.parseInt(value); break;
+                case "seed": seed = Long.parseLong(value); break;
+                case "cacheValues": cacheValues = Boolean.parseBoolean(value); break;
+                case "format": format = value; break;
+                case "out": out = Paths.get(value); break;
+                case "node": node = Integer.parseInt(value); break;
+                case "results": results = Paths.get(value); break;
+                default: throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        if (!format.equals("csv") && !format.equals("json")) {
+            throw new IllegalArgumentException("--format must be csv or json");
+        }
+        return this;
+    }
+
+    /**
+     * Runs the nodes and the load, and writes the report.
+     *
+     * @return the results for puts, gets and all operations together
+     */
+    public List<Result> run() throws IOException, InterruptedException {
+        Registry registry = startRegistry();
+        Path directory = Files.createTempDirectory("kademlia-load");
+        List<NodeProcess> processes = new ArrayList<>();
+        try {
+            // the first node starts the network, and the others join through it
+            processes.add(launch(0, directory));
+            processes.get(0).await(READY);
+            for (int i = 1; i < nodes; i++) {
+                processes.add(launch(i, directory));
+            }
+            for (NodeProcess process : processes.subList(1, nodes)) {
+                process.await(READY);
+            }
+            System.err.println(nodes + " nodes joined");
+
+            for (NodeProcess process : processes) {
+                process.send("preload");
+            }
+            for (NodeProcess process : processes) {
+                process.await(LOADED);
+            }
+            System.err.println(keys + " values stored, running " + rate + " operations per second for "
+                    + warmupSeconds + " s of warmup and " + durationSeconds + " s measured");
+
+            for (NodeProcess process : processes) {
+                process.send("run");
+            }
+            for (NodeProcess process : processes) {
+                process.await(DONE);
+            }
+            for (NodeProcess process : processes) {
+                process.send("exit");
+            }
+            for (NodeProcess process : processes) {
+                process.process.waitFor(STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+
+            List<Result> report = collect(directory);
+            write(report);
+            return report;
+        } finally {
+            for (NodeProcess process : processes) {
+                process.process.destroyForcibly();
+            }
+            for (int i = 0; i < nodes; i++) {
+                Files.deleteIfExists(directory.resolve("node" + i + ".csv"));
+            }
+            Files.delete(directory);
+            if (registry != null) {
+                UnicastRemoteObject.unexportObject(registry, true);
+            }
+        }
+    }
+
+    /**
+     * @return the registry started here, or null if one was running already, such as from rmiregistry_start.sh
+     */
+    private static Registry startRegistry() throws RemoteException {
+        try {
+            return LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+        } catch (ExportException e) {
+            return null;
+        }
+    }
+
+    private NodeProcess launch(int index, Path directory) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx256m",
+                "-Djava.rmi.server.hostname=127.0.0.1",
+                "-cp", System.getProperty("java.class.path"),
+                LoadGenerator.class.getName(),
+                "--node=" + index,
+                "--results=" + directory.resolve("node" + index + ".csv"),
+                "--nodes=" + nodes,
+                "--rate=" + rate,
+                "--warmupSeconds=" + warmupSeconds,
+                "--durationSeconds=" + durationSeconds,
+                "--getRatio=" + getRatio,
+                "--keys=" + keys,
+                "--valueBytes=" + valueBytes,
+                "--ksize=" + ksize,
+                "--workers=" + workers,
+                "--basePort=" + basePort,
+                "--seed=" + seed,
+                "--cacheValues=" + cacheValues));
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        return new NodeProcess(index, process);
+    }
+
+    // A node process, and the steps it has reported
+    private static class NodeProcess {
+        final int index;
+        final Process process;
+        final BlockingQueue<String> steps = new LinkedBlockingQueue<>();
+        final PrintStream input;
+
+        NodeProcess(int index, Process process) {
+            this.index = index;
+            this.process = process;
+            this.input = new PrintStream(process.getOutputStream(), true, StandardCharsets.UTF_8);
+            Thread reader = new Thread(this::readOutput, "load-node-" + index);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // Passes the steps on, and anything else the node prints to our standard error
+        private void readOutput() {
+            try (BufferedReader output = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    if (line.equals(READY) || line.equals(LOADED) || line.equals(DONE)) {
+                        steps.add(line);
+                    } else {
+                        System.err.println("[node " + index + "] " + line);
+                    }
+                }
+            } catch (IOException e) {
+                // the process is gone, which await notices
+            }
+        }
+
+        void send(String command) {
+            input.println(command);
+        }
+
+        void await(String step) throws IOException, InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STEP_TIMEOUT_SECONDS);
+            while (System.nanoTime() < deadline) {
+                String reported = steps.poll(100, TimeUnit.MILLISECONDS);
+                if (step.equals(reported)) {
+                    return;
+                }
+                if (reported == null && !process.isAlive()) {
+                    throw new IOException("Node " + index + " exited with " + process.exitValue()
+                            + " before it was " + step);
+                }
+            }
+            throw new IOException("Node " + index + " did not report " + step + " in time");
+        }
+    }
+
+    /**
+     * Runs one node: joins the network, then carries out the coordinator's commands until it says exit.
+     */
+    private void runNode() throws IOException, InterruptedException {
+        Host self = host(node);
+        KademliaRPCImpl rpc = new KademliaRPCImpl();
+        KademliaClient client = new KademliaClient(self, rpc, new FlatRoutingTable(Long.SIZE, self, ksize, rpc), true);
+        client.setCacheValues(cacheValues);
+        client.setExportMetrics(false);
+        client.setMetricsSnapshotIntervalMillis(0);
+        client.start(node == 0 ? null : host(0));
+        System.out.println(READY);
+
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String command;
+        while ((command = commands.readLine()) != null && !command.equals("exit")) {
+            if (command.equals("preload")) {
+                // joining through node 0 leaves most nodes knowing little more than it, and every lookup would then
+                // start there; a network this small is one where every node knows every other
+                for (int i = 0; i < nodes; i++) {
+                    if (i != node) {
+                        client.addHost(host(i));
+                    }
+                }
+                for (int i = node; i < keys; i += nodes) {
+                    client.put(valueKey(i), value(i));
+                }
+                System.out.println(LOADED);
+            } else if (command.equals("run")) {
+                drive(client);
+                System.out.println(DONE);
+            }
+        }
+
+        client.stop();
+        try {
+            LocateRegistry.getRegistry().unbind(Long.toString(self.getKey()));
+        } catch (NotBoundException | RemoteException e) {
+            // the coordinator's registry may already be gone
+        }
+    }
+
+    /**
+     * Sends this node's share of the load, with exponentially distributed gaps between arrivals, and writes a line
+     * per operation due after the warmup to the results file: the operation, its latency and when it ended in
+     * nanoseconds since the warmup, and its outcome.
+     */
+    private void drive(KademliaClient client) throws IOException, InterruptedException {
+        Random random = new Random(seed * 7919 + node);
+        double meanGapNanos = 1e9 * nodes / rate;
+        long durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        ConcurrentLinkedQueue<String> samples = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+        long due = System.nanoTime();
+        // operations due before start are warmup, carried out but not reported
+        long start = due + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        while (true) {
+            due += (long) (-meanGapNanos * Math.log(1 - random.nextDouble()));
+            if (due - start >= durationNanos) {
+                break;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean get = random.nextDouble() < getRatio;
+            int index = random.nextInt(keys);
+            long arrival = due;
+            pool.execute(() -> {
+                String outcome = "ok";
+                try {
+                    if (get) {
+                        if (client.get(valueKey(index)) == null) {
+                            outcome = "miss";
+                        }
+                    } else {
+                        client.put(valueKey(index), value(index));
+                    }
+                } catch (RuntimeException e) {
+                    outcome = "error";
+                }
+                long end = System.nanoTime();
+                if (arrival - start < 0) {
+                    return;
+                }
+                samples.add((get ? "get," : "put,") + (end - arrival) + "," + (end - start) + "," + outcome);
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        Files.write(results, samples, StandardCharsets.UTF_8);
+    }
+
+    // Merges the samples of every node
+    private List<Result> collect(Path directory) throws IOException {
+        Map<String, List<String[]>> byOperation = new LinkedHashMap<>();
+        byOperation.put("put", new ArrayList<>());
+        byOperation.put("get", new ArrayList<>());
+        List<String[]> all = new ArrayList<>();
+        long lastEnd = 0;
+        for (int i = 0; i < nodes; i++) {
+            for (String line : Files.readAllLines(directory.resolve("node" + i + ".csv"), StandardCharsets.UTF_8)) {
+                String[] sample = line.split(",");
+                byOperation.get(sample[0]).add(sample);
+                all.add(sample);
+                lastEnd = Math.max(lastEnd, Long.parseLong(sample[2]));
+            }
+        }
+        // operations still running when the load stopped arriving count against the time they took
+        double seconds = Math.max(durationSeconds, lastEnd / 1e9);
+
+        List<Result> report = new ArrayList<>();
+        for (var entry : byOperation.entrySet()) {
+            report.add(result(entry.getKey(), entry.getValue(), seconds));
+        }
+        report.add(result("all", all, seconds));
+        return report;
+    }
+
+    private static Result result(String operation, List<String[]> samples, double seconds) {
+        long[] latencies = new long[samples.size()];
+        int errors = 0;
+        int misses = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            String[] sample = samples.get(i);
+            latencies[i] = Long.parseLong(sample[1]);
+            if (sample[3].equals("error")) {
+                errors++;
+            } else if (sample[3].equals("miss")) {
+                misses++;
+            }
+        }
+        return new Result(operation, latencies, errors, misses, seconds);
+    }
+
+    private void write(List<Result> report) throws IOException {
+        if (out == null) {
+            PrintWriter printer = new PrintWriter(System.out);
+            print(report, printer);
+            printer.flush();
+        } else {
+            try (PrintWriter printer = new PrintWriter(Files.newBufferedWriter(out, StandardCharsets.UTF_8))) {
+                print(report, printer);
+            }
+        }
+    }
+
+    private void print(List<Result> report, PrintWriter printer) {
+        if (format.equals("csv")) {
+            printer.println("operation,nodes,target_rate,duration_s,count,errors,misses,throughput_ops_s,"
+                    + "mean_ms,p50_ms,p99_ms,p999_ms,max_ms");
+            for (Result result : report) {
+                printer.println(String.format(Locale.ROOT, "%s,%d,%.1f,%d,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f",
+                        result.operation, nodes, rate, durationSeconds, result.count, result.errors,
+                        result.misses, result.throughput, result.meanMillis(), result.percentileMillis(0.5),
+                        result.percentileMillis(0.99), result.percentileMillis(0.999), result.maxMillis()));
+            }
+        } else {
+            printer.println(String.format(Locale.ROOT,
+                    "{\"nodes\": %d, \"targetRate\": %.1f, \"durationSeconds\": %d, \"getRatio\": %.2f, "
+                            + "\"valueBytes\": %d, \"results\": [", nodes, rate, durationSeconds, getRatio,
+                    valueBytes));
+            for (int i = 0; i < report.size(); i++) {
+                Result result = report.get(i);
+                printer.println(String.format(Locale.ROOT,
+                        "  {\"operation\": \"%s\", \"count\": %d, \"errors\": %d, \"misses\": %d, "
+                                + "\"throughput\": %.1f, \"meanMillis\": %.3f, \"p50Millis\": %.3f, "
+                                + "\"p99Millis\": %.3f, \"p999Millis\": %.3f, \"maxMillis\": %.3f}%s",
+                        result.operation, result.count, result.errors, result.misses, result.throughput,
+                        result.meanMillis(), result.percentileMillis(0.5), result.percentileMillis(0.99),
+                        result.percentileMillis(0.999), result.maxMillis(), i < report.size() - 1 ? "," : ""));
+            }
+            printer.println("]}");
+        }
+    }
+
+    private Host host(int index) {
+        return new Host("127.0.0.1", mix(seed, index), basePort + index);
+    }
+
+    private long valueKey(int index) {
+        return mix(~seed, index);
+    }
+
+    private DataBlock value(int index) {
+        byte[] payload = new byte[valueBytes];
+        new Random(index).nextBytes(payload);
+        return new DataBlock(payload);
+    }
+
+    // Spreads consecutive indices over the whole key space, the way SplitMix64 does
+    private static long mix(long seed, long index) {
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.configure(args);
+            if (generator.node >= 0) {
+                generator.runNode();
+            } else {
+                generator.run();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+        // RMI keeps non-daemon threads around after everything is unexported
+        System.exit(0);
+    }
+}
@@ -0,0 +1,425 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps values in append-only segment files on disk, read and written through memory maps, so a node can hold far
+ * more than fits on its heap and still has its values after a restart.
+ *
+ * Every put appends a record to the active segment; when it fills up a new segment is started. Where each key's
+ * latest record lives is kept in an {@link OffHeapLongMap}, so the heap only grows with the number of segments. An
+ * overwritten record stays in its segment as garbage until the compactor copies the live records of a mostly dead
+ * segment to the active one and deletes the file.
+ *
+ * <pre>
+ * segment-NNNNN.log: records, then zeros up to segmentBytes
+ * record:            length(4) key(8) data(length - 8)
+ * </pre>
+ *
+ * The length is written last, so a record torn by a crash reads as the end of the segment. On startup the segments
+ * are replayed in order to rebuild the index.
+ */
+public class LogStructuredStorageEngine implements StorageEngine {
+    // Default size of each segment file
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    // Default share of dead bytes above which a segment gets compacted
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    // Default time between compaction runs
+    public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = 30_000;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // length(4) + key(8)
+    private static final int RECORD_HEADER = Integer.BYTES + Long.BYTES;
+
+    private final Path directory;
+
+    @Getter
+    private final int segmentBytes;
+
+    // Segments by id. The one with the highest id takes the appends.
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+    // key -> (segment id << 32 | offset) of the latest record for that key
+    private final OffHeapLongMap index = new OffHeapLongMap(1024);
+
+    // Guards the index and the segments. Reads share it; appends and compaction take it exclusively.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ScheduledExecutorService compactor;
+
+    private Segment active;
+
+    // A segment is compacted once more than this share of its bytes is overwritten records
+    @Getter @Setter
+    private volatile double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    public LogStructuredStorageEngine(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_COMPACTION_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens the segments in a directory, creating it if needed, and starts the background compactor.
+     *
+     * @param compactionIntervalMillis time between compaction runs, or 0 to only compact when {@link #compact()} is
+     *                                 called
+     */
+    public LogStructuredStorageEngine(Path directory, int segmentBytes, long compactionIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        recover();
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kademlia-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (compactionIntervalMillis > 0) {
+            compactor.scheduleWithFixedDelay(this::compactQuietly,
+                    compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        ids.sort(null);
+
+        for (int id : ids) {
+            Segment segment = openSegment(id);
+            segments.put(id, segment);
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = 0;
+            while (offset + RECORD_HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length < Long.BYTES || offset + Integer.BYTES + length > buffer.capacity()) {
+                    break;
+                }
+                index(buffer.getLong(offset + Integer.BYTES), location(id, offset), Integer.BYTES + length);
+                offset += Integer.BYTES + length;
+            }
+            segment.writeOffset = offset;
+        }
+
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (active == null) {
+            roll();
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path file = directory.resolve(String.format("%s%05d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+    }
+
+    // Starts a new active segment. Callers hold the write lock.
+    private void roll() throws IOException {
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        active = openSegment(id);
+        segments.put(id, active);
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    // Points a key at a new record and counts the bytes it replaces as dead
+    private void index(long key, long location, int recordBytes) {
+        segments.get(segmentId(location)).liveBytes += recordBytes;
+        long previous = index.put(key, location);
+        if (previous != 0) {
+            Segment old = segments.get(segmentId(previous));
+            old.liveBytes -= Integer.BYTES + old.buffer.getInt(offset(previous));
+        }
+    }
+
+    @Override
+    public void put(long key, DataBlock data) {
+        int recordBytes = RECORD_HEADER + data.encodedSize();
+        if (recordBytes > segmentBytes) {
+            throw new IllegalArgumentException("A " + recordBytes + " byte record does not fit a segment");
+        }
+        lock.writeLock().lock();
+        try {
+            long location = append(recordBytes, buffer -> {
+                buffer.putLong(key);
+                data.writeTo(buffer);
+            });
+            index(key, location, recordBytes);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends one record to the active segment, rolling over first if it does not fit. Callers hold the write lock.
+     *
+     * @param body writes the key and the data
+     * @return the location of the new record
+     */
+    private long append(int recordBytes, Consumer<ByteBuffer> body) {
+        try {
+            if (active.writeOffset + recordBytes > segmentBytes) {
+                roll();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int offset = active.writeOffset;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset + Integer.BYTES);
+        body.accept(buffer);
+        // the length goes in last so a torn record is never replayed
+        active.buffer.putInt(offset, recordBytes - Integer.BYTES);
+        active.writeOffset = offset + recordBytes;
+        return location(active.id, offset);
+    }
+
+    @Override
+    public DataBlock get(long key) {
+        lock.readLock().lock();
+        try {
+            long location = index.get(key);
+            if (location == 0) {
+                return null;
+            }
+            ByteBuffer buffer = segments.get(segmentId(location)).buffer.duplicate();
+            buffer.position(offset(location) + RECORD_HEADER);
+            return DataBlock.readFrom(buffer);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(long key) {
+        lock.readLock().lock();
+        try {
+            return index.get(key) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the bytes taken by the live records, headers included. Overwritten records awaiting compaction are not
+     * counted.
+     */
+    @Override
+    public long bytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Segment segment : segments.values()) {
+                bytes += segment.liveBytes;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits the keys that were stored when the call began. The lock is only held while each value is read.
+     */
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        forEachInRange(0, -1, visitor);
+    }
+
+    /**
+     * Visits the keys in the range that were stored when the call began. The index is not ordered, so finding them
+     * takes a scan over it, but only the values in the range are read.
+     */
+    @Override
+    public void forEachInRange(long from, long to, EntryVisitor visitor) {
+        long[] keys;
+        lock.readLock().lock();
+        try {
+            keys = index.keysInRange(from, to);
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (long key : keys) {
+            DataBlock data = get(key);
+            if (data != null) {
+                visitor.visit(key, data);
+            }
+        }
+    }
+
+    /**
+     * Copies the live records out of every full segment whose dead share is above compactionThreshold, then deletes
+     * those segments. Reads and writes wait only while a single record is moved.
+     */
+    public synchronized void compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.writeOffset > 0
+                        && 1 - (double) segment.liveBytes / segment.writeOffset > compactionThreshold) {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (Segment segment : candidates) {
+            compact(segment);
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer source = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset < segment.writeOffset) {
+            int recordBytes = Integer.BYTES + source.getInt(offset);
+            long key = source.getLong(offset + Integer.BYTES);
+            long location = location(segment.id, offset);
+            lock.writeLock().lock();
+            try {
+                if (index.get(key) == location) {
+                    ByteBuffer record = source.duplicate();
+                    record.position(offset + Integer.BYTES).limit(offset + recordBytes);
+                    index(key, append(recordBytes, buffer -> buffer.put(record)), recordBytes);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            offset += recordBytes;
+        }
+
+        // the moved records must be on disk before the only other copy goes away
+        lock.writeLock().lock();
+        try {
+            for (Segment other : segments.values()) {
+                if (other != segment) {
+                    other.buffer.force();
+                }
+            }
+            segments.remove(segment.id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        segment.channel.close();
+        Files.delete(segment.file);
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Compaction failed: " + e);
+        }
+    }
+
+    /**
+     * @return the number of segment files in use
+     */
+    public int segmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops the compactor and flushes every segment to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+            segments.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        Map<Long, DataBlock> values = new TreeMap<>();
+        forEach(values::put);
+        return values.toString();
+    }
+
+    // One segment file and its map
+    private static class Segment {
+        final int id;
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        // Where the next record goes
+        int writeOffset;
+
+        // Bytes taken by records the index still points at
+        long liveBytes;
+
+        Segment(int id, Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the path of a sample of lookups: when each began, every query it sent, every answer with its round trip
+ * time and whether it brought a closer host, and why it ended.
+ *
+ * Events go into a ring buffer of preallocated primitive arrays, so recording allocates nothing and the oldest
+ * events are overwritten once it is full. Writers claim slots with one atomic increment and never wait for each other.
+ * Each slot carries the sequence number it was last written with, set before and after the other fields, so a dump
+ * running alongside the writers skips the slots being written instead of showing them half done. The one case this
+ * does not cover is a writer lapped by another on the same slot, when a whole ring of events is recorded while it
+ * writes one: the two can interleave their fields, and a dump may show the mix as the later event.
+ *
+ * With sampleRate at 0 a lookup costs one volatile read; the other methods are only called for sampled lookups,
+ * whose trace ID is not 0. The buffer is only allocated once a sample rate is set, so the tracers of nodes that
+ * never trace take no room.
+ */
+public class LookupTracer {
+    // Default number of events kept
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    // What an event records
+    public enum Kind {
+        // value: the key. count: 1 for findValue, 0 for findNode
+        START,
+        // host: the host queried
+        SENT,
+        // host: the host that answered. value: round trip time in nanoseconds. count: 1 if it brought a closer host
+        ANSWER,
+        // host: the host that failed or timed out. value: time waited in nanoseconds
+        FAILED,
+        // host: the host whose query was hedged
+        SLOW,
+        // value: the End reason. count: the number of queries sent
+        END
+    }
+
+    // Why a lookup ended
+    public enum End {
+        // a host returned the value
+        FOUND,
+        // the k closest hosts known all answered
+        CONVERGED,
+        // fewer than k hosts could be reached
+        EXHAUSTED
+    }
+
+    // Share of lookups traced, from 0 for none to 1 for all
+    @Getter
+    private volatile double sampleRate;
+
+    private final int capacity;
+
+    private final AtomicLong nextTraceId = new AtomicLong(1);
+
+    // Null until a sample rate is set. Set before sampleRate, so a sampled lookup always finds it.
+    private volatile Ring ring;
+
+    public LookupTracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of events kept, rounded up to a power of two
+     */
+    public LookupTracer(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate > 0 && ring == null) {
+            synchronized (this) {
+                if (ring == null) {
+                    ring = new Ring(capacity);
+                }
+            }
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Decides whether to trace a lookup, and records its start if so.
+     *
+     * @return the trace ID to pass to the other methods, or 0 if the lookup is not traced
+     */
+    public long begin(long key, boolean findValue) {
+        double rate = sampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return 0;
+        }
+        long traceId = nextTraceId.getAndIncrement();
+        record(traceId, Kind.START, 0, key, findValue ? 1 : 0);
+        return traceId;
+    }
+
+    public void sent(long traceId, Host host) {
+        record(traceId, Kind.SENT, host.getKey(), 0, 0);
+    }
+
+    public void answered(long traceId, Host host, long rttNanos, boolean closer) {
+        record(traceId, Kind.ANSWER, host.getKey(), rttNanos, closer ? 1 : 0);
+    }
+
+    public void failed(long traceId, Host host, long waitedNanos) {
+        record(traceId, Kind.FAILED, host.getKey(), waitedNanos, 0);
+    }
+
+    public void slow(long traceId, Host host) {
+        record(traceId, Kind.SLOW, host.getKey(), 0, 0);
+    }
+
+    public void end(long traceId, End reason, int queriesSent) {
+        record(traceId, Kind.END, 0, reason.ordinal(), queriesSent);
+    }
+
+    private void record(long traceId, Kind kind, long host, long value, int count) {
+        Ring ring = this.ring;
+        long sequence = ring.nextSequence.getAndIncrement();
+        int slot = (int) (sequence & ring.mask);
+        ring.sequences.set(slot, -1);
+        // keep the plain stores below from becoming visible before the -1
+        VarHandle.storeStoreFence();
+        ring.traceIds[slot] = traceId;
+        ring.times[slot] = System.nanoTime();
+        ring.kinds[slot] = (byte) kind.ordinal();
+        ring.hosts[slot] = host;
+        ring.values[slot] = value;
+        ring.counts[slot] = count;
+        ring.sequences.set(slot, sequence);
+    }
+
+    /**
+     * @return the traces still in the buffer, oldest first, one line per event. Traces whose start has been
+     * overwritten are shown from their oldest remaining event.
+     */
+    public String dump() {
+        Ring ring = this.ring;
+        if (ring == null) {
+            return "";
+        }
+        long end = ring.nextSequence.get();
+        long start = Math.max(0, end - ring.mask - 1);
+        Map<Long, List<String>> traces = new LinkedHashMap<>();
+        Map<Long, Long> startTimes = new LinkedHashMap<>();
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & ring.mask);
+            if (ring.sequences.get(slot) != sequence) {
+                continue;
+            }
+            long traceId = ring.traceIds[slot];
+            long time = ring.times[slot];
+            Kind kind = Kind.values()[ring.kinds[slot]];
+            long host = ring.hosts[slot];
+            long value = ring.values[slot];
+            int count = ring.counts[slot];
+            // keep the reads above from moving past the check below
+            VarHandle.acquireFence();
+            if (ring.sequences.get(slot) != sequence) {
+                // overwritten while we read it
+                continue;
+            }
+
+            long startTime = startTimes.computeIfAbsent(traceId, id -> time);
+            List<String> lines = traces.computeIfAbsent(traceId, id -> new ArrayList<>());
+            lines.add(describe(kind, host, value, count, time - startTime));
+        }
+
+        StringBuilder out = new StringBuilder();
+        for (var trace : traces.entrySet()) {
+            out.append("trace ").append(trace.getKey()).append('\n');
+            for (String line : trace.getValue()) {
+                out.append("  ").append(line).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static String describe(Kind kind, long host, long value, int count, long elapsedNanos) {
+        String at = String.format("+%.3f ms ", elapsedNanos / 1e6);
+        switch (kind) {
+            case START:
+                return at + (count == 1 ? "findValue" : "findNode") + " key " + Long.toHexString(value);
+            case SENT:
+                return at + "sent to " + Long.toHexString(host);
+            case ANSWER:
+                return at + "answer from " + Long.toHexString(host) + String.format(" in %.3f ms", value / 1e6)
+                        + (count == 1 ? ", closer" : "");
+            case FAILED:
+                return at + "failed " + Long.toHexString(host) + String.format(" after %.3f ms", value / 1e6);
+            case SLOW:
+                return at + "slow " + Long.toHexString(host) + ", hedged";
+            default:
+                return at + "end " + End.values()[(int) value] + " after " + count + " queries";
+        }
+    }
+
+    // The events, one slot per index across the arrays
+    private static class Ring {
+        final int mask;
+
+        final AtomicLong nextSequence = new AtomicLong();
+
+        // The sequence number each slot was last written with, or -1 while it is being written
+        final AtomicLongArray sequences;
+        final long[] traceIds;
+        final long[] times;
+        final byte[] kinds;
+        final long[] hosts;
+        final long[] values;
+        final int[] counts;
+
+        Ring(int size) {
+            this.mask = size - 1;
+            this.sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, -1);
+            }
+            this.traceIds = new long[size];
+            this.times = new long[size];
+            this.kinds = new byte[size];
+            this.hosts = new long[size];
+            this.values = new long[size];
+            this.counts = new int[size];
+        }
+    }
+}
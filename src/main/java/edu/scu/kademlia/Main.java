@@ -2,11 +2,30 @@ package edu.scu.kademlia;
 
 import lombok.RequiredArgsConstructor;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.rmi.ConnectException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+import java.util.function.Supplier;
 
+// Lookups send their RPCs from several threads, so the network delivers one message at a time
 @RequiredArgsConstructor
 class DummyNetwork {
     final Map<Host, KademliaClient> dummyHosts = new HashMap<>();
@@ -26,11 +45,11 @@ class DummyNetwork {
         return client;
     }
 
-    public void removeHost(Host host) {
+    public synchronized void removeHost(Host host) {
         dummyHosts.remove(host);
     }
 
-    public List<Host> findNode(Host src, Host dest, long key, boolean isNew) {
+    public synchronized List<Host> findNode(Host src, Host dest, long key, boolean isNew) {
         System.out.println("[Network] `findNode` " + src.ip + " to " + dest.ip + " key " + key);
         KademliaClient client = dummyHosts.get(dest);
         List<Host> result = client.findNode(key);
@@ -41,7 +60,7 @@ class DummyNetwork {
         return result;
     }
 
-    public HostSearchResult findValue(Host src, Host dest, long key) {
+    public synchronized HostSearchResult findValue(Host src, Host dest, long key) {
         System.out.println("[Network] `findValue` " + src.ip + " to " + dest.ip + " key " + key);
         KademliaClient client = dummyHosts.get(dest);
         HostSearchResult result = client.findValue(key);
@@ -49,13 +68,25 @@ class DummyNetwork {
         return result;
     }
 
-    public void store(Host src, Host dest, long key, DataBlock data) {
+    public synchronized void store(Host src, Host dest, long key, DataBlock data) {
         System.out.println("[Network] `store` " + src.ip + " to " + dest.ip + " key " + key);
         KademliaClient client = dummyHosts.get(dest);
         client.store(key, data);
     }
 
-    public boolean ping(Host host) {
+    public synchronized void storeBatch(Host src, Host dest, Map<Long, DataBlock> entries) {
+        System.out.println("[Network] `storeBatch` " + src.ip + " to " + dest.ip + " keys " + entries.keySet());
+        KademliaClient client = dummyHosts.get(dest);
+        client.storeBatch(entries);
+    }
+
+    public synchronized void cache(Host src, Host dest, long key, DataBlock data) {
+        System.out.println("[Network] `cache` " + src.ip + " to " + dest.ip + " key " + key);
+        KademliaClient client = dummyHosts.get(dest);
+        client.cache(key, data);
+    }
+
+    public synchronized boolean ping(Host host) {
         return dummyHosts.containsKey(host);
     }
 }
@@ -91,6 +122,22 @@ class DummyRPC implements KademliaRPC {
         network.store(self, host, key, data);
     }
 
+    @Override
+    public void storeBatch(Host host, Map<Long, DataBlock> entries) throws ConnectException {
+        if (!network.ping(host)) {
+            throw new ConnectException("Host offline");
+        }
+        network.storeBatch(self, host, entries);
+    }
+
+    @Override
+    public void cache(Host host, long key, DataBlock data) throws ConnectException {
+        if (!network.ping(host)) {
+            throw new ConnectException("Host offline");
+        }
+        network.cache(self, host, key, data);
+    }
+
     @Override
     public boolean ping(Host host) {
         return network.ping(host);
@@ -106,6 +153,157 @@ class DummyRPC implements KademliaRPC {
 
 }
 
+// Answers every ping, so buckets fill up and split without a network behind them
+class AlwaysOnlineRPC implements KademliaRPC {
+    @Override
+    public List<Host> findNode(Host host, long key, boolean isNew) {
+        return List.of();
+    }
+
+    @Override
+    public HostSearchResult findValue(Host host, long key) {
+        return new HostSearchResult();
+    }
+
+    @Override
+    public void store(Host host, long key, DataBlock data) {
+    }
+
+    @Override
+    public void storeBatch(Host host, Map<Long, DataBlock> entries) {
+    }
+
+    @Override
+    public void cache(Host host, long key, DataBlock data) {
+    }
+
+    @Override
+    public boolean ping(Host host) {
+        return true;
+    }
+}
+
+// AlwaysOnlineRPC answering on the calling thread, so that filling a table does not hand every eviction ping to a pool
+class AlwaysOnlineAsyncRPC implements AsyncKademliaRPC {
+    @Override
+    public CompletableFuture<List<Host>> findNode(Host host, long key, boolean isNew, long timeoutMillis) {
+        return CompletableFuture.completedFuture(List.of());
+    }
+
+    @Override
+    public CompletableFuture<HostSearchResult> findValue(Host host, long key, long timeoutMillis) {
+        return CompletableFuture.completedFuture(new HostSearchResult());
+    }
+
+    @Override
+    public CompletableFuture<Void> store(Host host, long key, DataBlock data, long timeoutMillis) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> storeBatch(Host host, Map<Long, DataBlock> entries, long timeoutMillis) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> cache(Host host, long key, DataBlock data, long timeoutMillis) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> ping(Host host, long timeoutMillis) {
+        return CompletableFuture.completedFuture(true);
+    }
+}
+
+// Delivers calls straight to the clients of other hosts, after a delay that depends on the host called. Now and
+// then a call straggles and takes stragglerMillis instead.
+class LatencyRPC implements KademliaRPC {
+    final Map<Long, KademliaClient> clients;
+    final Map<Long, Long> delayMillis;
+    final Host self;
+    double stragglerChance;
+    long stragglerMillis;
+    final AtomicLong findNodeCalls = new AtomicLong();
+    final AtomicLong findValueCalls = new AtomicLong();
+
+    LatencyRPC(Map<Long, KademliaClient> clients, Map<Long, Long> delayMillis, Host self) {
+        this.clients = clients;
+        this.delayMillis = delayMillis;
+        this.self = self;
+    }
+
+    private KademliaClient reach(Host host) throws ConnectException {
+        try {
+            boolean straggle = ThreadLocalRandom.current().nextDouble() < stragglerChance;
+            Thread.sleep(straggle ? stragglerMillis : delayMillis.getOrDefault(host.getKey(), 0L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectException("Interrupted");
+        }
+        KademliaClient client = clients.get(host.getKey());
+        if (client == null) {
+            throw new ConnectException("Host offline");
+        }
+        client.addHost(self);
+        return client;
+    }
+
+    @Override
+    public List<Host> findNode(Host host, long key, boolean isNew) throws ConnectException {
+        findNodeCalls.incrementAndGet();
+        return reach(host).findNode(key);
+    }
+
+    @Override
+    public HostSearchResult findValue(Host host, long key) throws ConnectException {
+        findValueCalls.incrementAndGet();
+        return reach(host).findValue(key);
+    }
+
+    @Override
+    public void store(Host host, long key, DataBlock data) throws ConnectException {
+        reach(host).store(key, data);
+    }
+
+    @Override
+    public void storeBatch(Host host, Map<Long, DataBlock> entries) throws ConnectException {
+        reach(host).storeBatch(entries);
+    }
+
+    @Override
+    public void cache(Host host, long key, DataBlock data) throws ConnectException {
+        reach(host).cache(key, data);
+    }
+
+    @Override
+    public boolean ping(Host host) {
+        try {
+            reach(host);
+            return true;
+        } catch (ConnectException e) {
+            return false;
+        }
+    }
+}
+
+// The clients of a network built by Main.latencyNetwork, and the random it was built with
+class LatencyNetwork {
+    final Random random;
+    final List<Host> hosts = new ArrayList<>();
+    final Map<Long, KademliaClient> clients = new ConcurrentHashMap<>();
+    final Map<Long, Long> delayMillis = new ConcurrentHashMap<>();
+    final List<LatencyRPC> rpcs = new ArrayList<>();
+
+    LatencyNetwork(Random random) {
+        this.random = random;
+    }
+
+    KademliaClient client(int index) {
+        return clients.get(hosts.get(index).getKey());
+    }
+}
+
 public class Main {
     public static void ASSERT(boolean bool) {
         if (!bool) {
@@ -202,6 +400,8 @@ public class Main {
 
         System.out.println("SETUP");
 
+        // make every key due as soon as it is stored
+        client5.getRepublishScheduler().setIntervalMillis(0);
         long testKey = 0b1010;
         client5.store(testKey, new DataBlock(25));
         client1.printDataStore();
@@ -209,19 +409,56 @@ public class Main {
         client3.printDataStore();
         client4.printDataStore();
         client5.printDataStore();
-        client5.republish();
+        client5.republish().join();
         client1.printDataStore();
         client2.printDataStore();
         client3.printDataStore();
         client4.printDataStore();
         client5.printDataStore();
-        client5.republish();
+        client5.republish().join();
         client1.printDataStore();
         client2.printDataStore();
         client3.printDataStore();
         client4.printDataStore();
         client5.printDataStore();
+        client5.stop();
+    }
+
+    /**
+     * Schedules many keys at once and checks the scheduler hands them out spread over time, never faster than its
+     * rate limit, and every key exactly once per interval.
+     */
+    public static void testRepublishScheduler() {
+        System.out.println("TEST REPUBLISH SCHEDULER");
+        final int keyCount = 5000;
+        final int keysPerSecond = 2000;
+        final RepublishScheduler scheduler = new RepublishScheduler();
+        scheduler.setIntervalMillis(1000);
+        scheduler.setKeysPerSecond(keysPerSecond);
+        for (long key = 0; key < keyCount; key++) {
+            scheduler.published(key);
+        }
 
+        final Set<Long> seen = new HashSet<>();
+        int busiestTick = 0;
+        final long end = System.currentTimeMillis() + 4000;
+        while (seen.size() < keyCount && System.currentTimeMillis() < end) {
+            final List<Long> due = scheduler.pollDue();
+            for (long key : due) {
+                ASSERT(seen.add(key));
+            }
+            busiestTick = Math.max(busiestTick, due.size());
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        System.out.println("Republished " + seen.size() + " keys, at most " + busiestTick + " in one 50 ms tick");
+        ASSERT(seen.size() == keyCount);
+        ASSERT(busiestTick <= keysPerSecond);
+        ASSERT(scheduler.pollDue().isEmpty());
     }
 
     public static void testJoinReplication() {
@@ -253,6 +490,1040 @@ public class Main {
 
     }
 
+    /**
+     * Fills a node with many keys and checks that a join only hands over keys the newcomer is one of the k closest
+     * hosts for and this node is the closest other holder of, and that finding them is quick.
+     */
+    public static void testJoinHandoff() {
+        System.out.println("TEST JOIN HANDOFF");
+        final int ksize = 8;
+        final int hostCount = 500;
+        final int keyCount = 200_000;
+        final Random random = new Random(14);
+        final Map<Long, DataBlock> handedOff = new ConcurrentHashMap<>();
+        final KademliaRPC rpc = new AlwaysOnlineRPC() {
+            @Override
+            public void storeBatch(Host host, Map<Long, DataBlock> entries) {
+                handedOff.putAll(entries);
+            }
+        };
+        final Host self = new Host("self", random.nextLong(), 8000);
+        final KademliaClient client = new KademliaClient(self, rpc, new FlatRoutingTable(64, self, ksize, rpc), false);
+        final List<Host> hosts = new ArrayList<>();
+        for (int i = 0; i < hostCount; i++) {
+            final Host host = new Host("ip" + i, random.nextLong(), 8000);
+            hosts.add(host);
+            client.addHost(host);
+        }
+        final DataBlock data = new DataBlock(1);
+        for (int i = 0; i < keyCount; i++) {
+            // half of the keys land next to us, as a node's keys do
+            final long key = i % 2 == 0 ? random.nextLong() : self.getKey() ^ (random.nextLong() >>> 8);
+            client.getDataStore().put(key, data);
+        }
+
+        // a newcomer far from us only has a narrow range to look at
+        final Host stranger = new Host("far", ~self.getKey(), 8000);
+        client.addHost(stranger);
+        long start = System.nanoTime();
+        client.replicateClosest(stranger).join();
+        System.out.printf("Far newcomer: handed off %d of %d keys in %.1f ms%n",
+                handedOff.size(), keyCount, (System.nanoTime() - start) / 1e6);
+        handedOff.clear();
+
+        // a newcomer next to us takes over much of what we hold
+        final Host newcomer = new Host("new", self.getKey() ^ 0x3FFFFFFFFFL, 8000);
+        client.addHost(newcomer);
+        start = System.nanoTime();
+        client.replicateClosest(newcomer).join();
+        System.out.printf("Near newcomer: handed off %d of %d keys in %.1f ms%n",
+                handedOff.size(), keyCount, (System.nanoTime() - start) / 1e6);
+        ASSERT(!handedOff.isEmpty());
+
+        final List<Host> everyone = client.allHosts();
+        for (long key : handedOff.keySet()) {
+            everyone.sort(KademliaClient.distanceComparator(key));
+            ASSERT(everyone.indexOf(newcomer) < ksize);
+            ASSERT(everyone.get(0).equals(self) || everyone.get(0).equals(newcomer) && everyone.get(1).equals(self));
+        }
+    }
+
+    /**
+     * Fills a bucket, then adds hosts while pings are slow and the least recently seen host is dead. Adding must not
+     * wait on the ping, and the dead host must be swapped for the newest replacement once the ping fails.
+     */
+    public static void testReplacementCache() {
+        System.out.println("TEST REPLACEMENT CACHE");
+        final Set<Host> dead = ConcurrentHashMap.newKeySet();
+        final KademliaRPC rpc = new AlwaysOnlineRPC() {
+            @Override
+            public boolean ping(Host host) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return !dead.contains(host);
+            }
+        };
+        final Bucket bucket = new Bucket(2, new BlockingAsyncRPC(rpc));
+        final Host oldest = new Host("ip1", 1, 8000);
+        final Host alive = new Host("ip2", 2, 8000);
+        final Host replacement1 = new Host("ip3", 3, 8000);
+        final Host replacement2 = new Host("ip4", 4, 8000);
+        dead.add(oldest);
+        ASSERT(bucket.addHost(oldest));
+        ASSERT(bucket.addHost(alive));
+
+        final long start = System.nanoTime();
+        ASSERT(!bucket.addHost(replacement1));
+        ASSERT(!bucket.addHost(replacement2));
+        final double addMillis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("Added to a full bucket in %.2f ms%n", addMillis);
+        ASSERT(addMillis < 100);
+        ASSERT(bucket.getReplacements().equals(List.of(replacement1, replacement2)));
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (bucket.contains(oldest) && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        System.out.println("Bucket: " + bucket.getNodesInBucket() + ", replacements: " + bucket.getReplacements());
+        ASSERT(bucket.getNodesInBucket().equals(List.of(alive, replacement2)));
+        ASSERT(bucket.getReplacements().equals(List.of(replacement1)));
+
+        // a host dropped after a failed RPC makes room for the next replacement
+        bucket.removeHost(alive);
+        ASSERT(bucket.getNodesInBucket().equals(List.of(replacement2, replacement1)));
+        ASSERT(bucket.getReplacements().isEmpty());
+    }
+
+    /**
+     * Runs lookups in a network where a third of the hosts answer slowly, once going by distance alone and once
+     * preferring the faster of equally close hosts, and compares the lookup times.
+     */
+    public static void testLatencyAwareLookup() {
+        System.out.println("TEST LATENCY AWARE LOOKUP");
+        final int ksize = 4;
+        final int lookups = 150;
+        final LatencyNetwork network = latencyNetwork(16, 200, ksize, i -> i % 3 == 0 ? 15 : 1, 8);
+        final Random random = network.random;
+        for (KademliaClient client : network.clients.values()) {
+            // every pass has to walk the network, not read what the last one cached
+            client.setCacheValues(false);
+        }
+
+        final long[] keys = new long[lookups];
+        for (int i = 0; i < lookups; i++) {
+            keys[i] = random.nextLong();
+            network.client(2).put(keys[i], new DataBlock(i));
+        }
+
+        final KademliaClient client = network.client(1);
+        // learn the round trip times
+        for (int i = 0; i < 50; i++) {
+            client.nodeLookup(random.nextLong(), false);
+        }
+        for (boolean preferLowLatency : new boolean[]{false, true}) {
+            client.setPreferLowLatency(preferLowLatency);
+            final long[] findNodeMillis = new long[lookups];
+            final long[] findValueMillis = new long[lookups];
+            for (int i = 0; i < lookups; i++) {
+                long start = System.nanoTime();
+                ASSERT(client.nodeLookup(keys[i], false).size() == ksize);
+                findNodeMillis[i] = (System.nanoTime() - start) / 1_000_000;
+                start = System.nanoTime();
+                ASSERT(client.get(keys[i]).getSampleValue() == i);
+                findValueMillis[i] = (System.nanoTime() - start) / 1_000_000;
+            }
+            Arrays.sort(findNodeMillis);
+            Arrays.sort(findValueMillis);
+            System.out.println((preferLowLatency ? "Latency aware" : "Distance only")
+                    + ": findNode p50 " + findNodeMillis[lookups / 2] + " ms, p99 " + findNodeMillis[lookups * 99 / 100]
+                    + " ms; findValue p50 " + findValueMillis[lookups / 2] + " ms, p99 "
+                    + findValueMillis[lookups * 99 / 100] + " ms");
+        }
+    }
+
+    /**
+     * Builds a network of clients with flat routing tables that call each other through {@link LatencyRPC}.
+     *
+     * @param seed       seeds the host keys and the mesh, and then the network's random for the test to go on with
+     * @param delays     how long a call to each host takes in milliseconds, by the host's index
+     * @param meshDegree how many random hosts each host starts out knowing, so that lookups take several hops. Each
+     *                   host then looks itself up, as a joining host does. At hostCount - 1, every host knows every
+     *                   other instead.
+     */
+    static LatencyNetwork latencyNetwork(long seed, int hostCount, int ksize, IntToLongFunction delays,
+                                         int meshDegree) {
+        final LatencyNetwork network = new LatencyNetwork(new Random(seed));
+        for (int i = 0; i < hostCount; i++) {
+            final Host host = new Host("ip" + i, network.random.nextLong(), 8000);
+            network.hosts.add(host);
+            network.delayMillis.put(host.getKey(), delays.applyAsLong(i));
+        }
+        for (Host host : network.hosts) {
+            final LatencyRPC rpc = new LatencyRPC(network.clients, network.delayMillis, host);
+            network.rpcs.add(rpc);
+            network.clients.put(host.getKey(),
+                    new KademliaClient(host, rpc, new FlatRoutingTable(64, host, ksize, rpc), false));
+        }
+
+        if (meshDegree >= hostCount - 1) {
+            for (Host host : network.hosts) {
+                for (Host other : network.hosts) {
+                    if (!other.equals(host)) {
+                        network.clients.get(host.getKey()).addHost(other);
+                    }
+                }
+            }
+        } else if (meshDegree > 0) {
+            for (Host host : network.hosts) {
+                for (int i = 0; i < meshDegree; i++) {
+                    final Host other = network.hosts.get(network.random.nextInt(hostCount));
+                    if (!other.equals(host)) {
+                        network.clients.get(host.getKey()).addHost(other);
+                    }
+                }
+            }
+            for (Host host : network.hosts) {
+                network.clients.get(host.getKey()).nodeLookup(host.getKey(), false);
+            }
+        }
+        return network;
+    }
+
+    /**
+     * Reads values from a network where one call in twenty straggles, with and without hedged findValue queries,
+     * and compares the read latencies.
+     */
+    public static void testHedgedGet() {
+        System.out.println("TEST HEDGED GET");
+        final int hostCount = 50;
+        final int reads = 300;
+        final LatencyNetwork network = latencyNetwork(17, hostCount, 4, i -> 2, hostCount - 1);
+        final Random random = network.random;
+        for (KademliaClient client : network.clients.values()) {
+            // every pass has to walk the network, not read what the last one cached
+            client.setCacheValues(false);
+        }
+        final long[] keys = new long[reads];
+        for (int i = 0; i < reads; i++) {
+            keys[i] = random.nextLong();
+            network.client(2).put(keys[i], new DataBlock(i));
+        }
+        for (LatencyRPC rpc : network.rpcs) {
+            rpc.stragglerChance = 0.05;
+            rpc.stragglerMillis = 100;
+        }
+
+        final KademliaClient client = network.client(1);
+        // one query at a time, so a straggler holds up the read unless it is hedged
+        client.setAlpha(1);
+        // learn the round trip times
+        for (int i = 0; i < 100; i++) {
+            client.nodeLookup(random.nextLong(), false);
+        }
+        for (boolean hedge : new boolean[]{false, true}) {
+            client.setHedgeFindValue(hedge);
+            final long[] millis = new long[reads];
+            for (int i = 0; i < reads; i++) {
+                final long start = System.nanoTime();
+                ASSERT(client.get(keys[i]).getSampleValue() == i);
+                millis[i] = (System.nanoTime() - start) / 1_000_000;
+            }
+            Arrays.sort(millis);
+            System.out.println((hedge ? "Hedged" : "Not hedged") + ": get p50 " + millis[reads / 2] + " ms, p99 "
+                    + millis[reads * 99 / 100] + " ms");
+        }
+    }
+
+    /**
+     * Slows a host down past its adaptive lookup timeout and checks that one timed out query does not cost it its
+     * place in the routing table, while one that keeps timing out is dropped.
+     */
+    public static void testSlowPeerKept() {
+        System.out.println("TEST SLOW PEER KEPT");
+        final LatencyNetwork network = latencyNetwork(26, 10, 4, i -> 2, 0);
+        final Random random = network.random;
+        final KademliaClient client = network.client(0);
+        for (Host other : network.hosts) {
+            if (!other.equals(network.hosts.get(0))) {
+                client.addHost(other);
+            }
+        }
+
+        // a lookup of its own key asks the slow host first
+        final Host slow = client.getClosestHosts(random.nextLong(), 1, false).get(0);
+        for (int i = 0; i < 5; i++) {
+            client.nodeLookup(slow.getKey(), false);
+        }
+        final long timeoutMillis = client.getPeerStats().timeoutMillis(slow.getKey(),
+                client.getMinRpcTimeoutMillis(), client.getRpcTimeoutMillis());
+        network.delayMillis.put(slow.getKey(), timeoutMillis + 200);
+
+        client.nodeLookup(slow.getKey(), false);
+        System.out.println("After one timeout: " + client.getPeerStats().get(slow.getKey()).getConsecutiveFailures()
+                + " failures, in table " + client.allHosts().contains(slow));
+        ASSERT(client.allHosts().contains(slow));
+        for (int i = 1; i < client.getMaxQueryFailures(); i++) {
+            client.nodeLookup(slow.getKey(), false);
+        }
+        System.out.println("After " + client.getMaxQueryFailures() + " timeouts: in table "
+                + client.allHosts().contains(slow));
+        ASSERT(!client.allHosts().contains(slow));
+    }
+
+    /**
+     * Lets the buckets of a node go idle while some of its hosts leave the network, and checks the background
+     * refresh drops the dead hosts and finds new ones.
+     */
+    public static void testBucketRefresh() {
+        System.out.println("TEST BUCKET REFRESH");
+        final int hostCount = 40;
+        final LatencyNetwork network = latencyNetwork(18, hostCount, 4, i -> 0, hostCount - 1);
+
+        final KademliaClient client = network.client(0);
+        final List<Host> known = client.allHosts();
+        known.remove(network.hosts.get(0));
+        final List<Host> leaving = known.subList(0, known.size() / 2);
+        for (Host host : leaving) {
+            network.clients.remove(host.getKey());
+        }
+
+        client.setBucketIdleMillis(100);
+        client.setBucketRefreshTickMillis(50);
+        client.start(null);
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        client.stop();
+
+        final List<Host> after = client.allHosts();
+        System.out.println("Knew " + known.size() + " hosts, " + leaving.size() + " left, now knows " + (after.size() - 1));
+        for (Host host : leaving) {
+            ASSERT(!after.contains(host));
+        }
+        ASSERT(after.size() - 1 > known.size() - leaving.size());
+    }
+
+    /**
+     * Checks the value cache keeps to its byte budget and TTLs, then reads one hot key from every host of a network
+     * and counts the findValue RPCs each read takes without caching, with caching, and when reading it again.
+     */
+    public static void testValueCache() {
+        System.out.println("TEST VALUE CACHE");
+        final ValueCache cache = new ValueCache(10_000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, new DataBlock(new byte[100]), 60_000);
+            // keep the first value in use
+            ASSERT(cache.get(0) != null);
+            ASSERT(cache.bytes() <= cache.getMaxBytes());
+        }
+        ASSERT(cache.get(1) == null);
+        ASSERT(cache.get(999) != null);
+        cache.put(-1, new DataBlock(new byte[20_000]), 60_000);
+        ASSERT(cache.get(-1) == null);
+        cache.put(-2, new DataBlock(2), 20);
+        try {
+            Thread.sleep(40);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ASSERT(cache.get(-2) == null);
+        System.out.println("Cached " + cache.size() + " values in " + cache.bytes() + " of " + cache.getMaxBytes()
+                + " bytes");
+
+        final int hostCount = 200;
+        final LatencyNetwork network = latencyNetwork(19, hostCount, 4, i -> 0, 8);
+        for (KademliaClient client : network.clients.values()) {
+            client.setCacheValues(false);
+        }
+
+        final long key = network.random.nextLong();
+        network.client(0).put(key, new DataBlock(19));
+        final String[] rounds = {"warm up", "no cache", "path cache", "read again"};
+        final double[] rpcsPerRead = new double[rounds.length];
+        for (int round = 0; round < rounds.length; round++) {
+            if (round == 2) {
+                for (KademliaClient client : network.clients.values()) {
+                    client.setCacheValues(true);
+                }
+            }
+            long before = 0;
+            for (LatencyRPC rpc : network.rpcs) {
+                before += rpc.findValueCalls.get();
+            }
+            for (Host host : network.hosts) {
+                ASSERT(network.clients.get(host.getKey()).get(key).getSampleValue() == 19);
+            }
+            long after = 0;
+            for (LatencyRPC rpc : network.rpcs) {
+                after += rpc.findValueCalls.get();
+            }
+            rpcsPerRead[round] = (double) (after - before) / hostCount;
+            System.out.println(rounds[round] + ": " + rpcsPerRead[round] + " findValue RPCs per read");
+        }
+        ASSERT(rpcsPerRead[2] <= rpcsPerRead[1]);
+        ASSERT(rpcsPerRead[3] == 0);
+    }
+
+    /**
+     * Has many threads read and write a few hot keys through one client at the same time, with and without lookup
+     * coalescing, and compares the number of lookup RPCs sent and the time taken.
+     */
+    public static void testLookupCoalescing() {
+        System.out.println("TEST LOOKUP COALESCING");
+        final int hostCount = 100;
+        final int ksize = 4;
+        final int threads = 16;
+        final int hotKeys = 4;
+        final int opsPerThread = 40;
+        final LatencyNetwork network = latencyNetwork(20, hostCount, ksize, i -> 2, 8);
+        for (KademliaClient client : network.clients.values()) {
+            // every read has to go to the network
+            client.setCacheValues(false);
+        }
+        final long[] keys = new long[hotKeys];
+        for (int i = 0; i < hotKeys; i++) {
+            keys[i] = network.random.nextLong();
+            network.client(2).put(keys[i], new DataBlock(i));
+        }
+
+        final KademliaClient client = network.client(1);
+        final long[] rpcCounts = new long[2];
+        for (boolean coalesce : new boolean[]{false, true}) {
+            client.setCoalesceLookups(coalesce);
+            long before = 0;
+            for (LatencyRPC rpc : network.rpcs) {
+                before += rpc.findNodeCalls.get() + rpc.findValueCalls.get();
+            }
+            final long start = System.nanoTime();
+            runConcurrently(threads, thread -> {
+                for (int i = 0; i < opsPerThread; i++) {
+                    final int hot = (thread + i) % hotKeys;
+                    if (i % 4 == 3) {
+                        client.put(keys[hot], new DataBlock(hot));
+                    } else {
+                        ASSERT(client.get(keys[hot]).getSampleValue() == hot);
+                    }
+                }
+            });
+            final long millis = (System.nanoTime() - start) / 1_000_000;
+            long after = 0;
+            for (LatencyRPC rpc : network.rpcs) {
+                after += rpc.findNodeCalls.get() + rpc.findValueCalls.get();
+            }
+            rpcCounts[coalesce ? 1 : 0] = after - before;
+            System.out.println((coalesce ? "Coalesced" : "Independent") + ": " + (after - before) + " lookup RPCs for "
+                    + threads * opsPerThread + " operations in " + millis + " ms");
+        }
+        ASSERT(rpcCounts[1] < rpcCounts[0]);
+    }
+
+    /**
+     * Runs some traffic through a started client and reads its metrics back over JMX, then times how long recording
+     * into a histogram shared by several threads takes.
+     */
+    public static void testMetrics() {
+        System.out.println("TEST METRICS");
+        final int hostCount = 30;
+        final int ksize = 4;
+        final LatencyNetwork network = latencyNetwork(21, hostCount, ksize, i -> 0, hostCount - 1);
+        final Random random = network.random;
+
+        final KademliaClient client = network.client(0);
+        client.setMetricsSnapshotIntervalMillis(0);
+        client.start(null);
+        for (int i = 0; i < 20; i++) {
+            final long key = random.nextLong();
+            client.put(key, new DataBlock(i));
+            ASSERT(network.client(1 + i % (hostCount - 1)).get(key).getSampleValue() == i);
+        }
+        // a host that went away makes the lookups that reach it fail
+        final Host gone = client.getClosestHosts(random.nextLong(), 1, false).get(0);
+        network.clients.remove(gone.getKey());
+        client.nodeLookup(gone.getKey(), false);
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final Host self = network.hosts.get(0);
+        final String node = ObjectName.quote(self.getIp() + ":" + self.getPort());
+        try {
+            final ObjectName nodeName = new ObjectName("edu.scu.kademlia:type=Node,node=" + node);
+            final ObjectName findNodeName = new ObjectName("edu.scu.kademlia:type=Rpc,node=" + node + ",rpc=FIND_NODE");
+            ASSERT((Long) server.getAttribute(nodeName, "Lookups") == 21);
+            ASSERT((Long) server.getAttribute(findNodeName, "Calls") > 0);
+            ASSERT((Long) server.getAttribute(findNodeName, "Errors") >= 1);
+            ASSERT((Long) server.getAttribute(nodeName, "StoredBytes") == client.getDataStore().size() * Integer.BYTES);
+            System.out.println("Over JMX: " + server.invoke(nodeName, "snapshot", null, null));
+            client.stop();
+            ASSERT(!server.isRegistered(nodeName));
+        } catch (JMException e) {
+            throw new AssertionError("Could not read the metrics over JMX", e);
+        }
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 4;
+        final int records = 2_000_000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                final ThreadLocalRandom threadRandom = ThreadLocalRandom.current();
+                for (int i = 0; i < records; i++) {
+                    histogram.record(threadRandom.nextInt(1_000_000));
+                }
+                done.countDown();
+            }).start();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final long nanos = System.nanoTime() - start;
+        ASSERT(histogram.count() == (long) threads * records);
+        System.out.println(threads + " threads recorded " + histogram.count() + " values in " + nanos / 1_000_000
+                + " ms, " + nanos * threads / histogram.count() + " ns per record per thread");
+    }
+
+    /**
+     * Traces every lookup of a client in a network with a host that went away, then checks the dump shows the path
+     * and how each lookup ended, that recording allocates nothing and that an idle tracer costs next to nothing.
+     */
+    public static void testLookupTracing() {
+        System.out.println("TEST LOOKUP TRACING");
+        final int hostCount = 30;
+        final int ksize = 4;
+        final LatencyNetwork network = latencyNetwork(22, hostCount, ksize, i -> 1L + i % 3, hostCount - 1);
+        final long key = network.random.nextLong();
+        network.client(2).put(key, new DataBlock(22));
+
+        final KademliaClient client = network.client(0);
+        final Host gone = client.getClosestHosts(key, 1, false).get(0);
+        client.getTracer().setSampleRate(1);
+        network.clients.remove(gone.getKey());
+        client.nodeLookup(key, false);
+        ASSERT(client.get(key).getSampleValue() == 22);
+        client.printTraces();
+        final String traces = client.getTracer().dump();
+        ASSERT(traces.contains("findNode key " + Long.toHexString(key)));
+        ASSERT(traces.contains("failed " + Long.toHexString(gone.getKey())));
+        ASSERT(traces.contains("end CONVERGED"));
+        ASSERT(traces.contains("findValue key " + Long.toHexString(key)));
+        ASSERT(traces.contains("end FOUND"));
+
+        // once full the buffer keeps the newest events only
+        final LookupTracer tracer = new LookupTracer(64);
+        tracer.setSampleRate(1);
+        final long traceId = tracer.begin(key, false);
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 100_000; i++) {
+            tracer.answered(traceId, gone, i, i % 2 == 0);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+        ASSERT(tracer.dump().split("\n").length == 65);
+        ASSERT(allocated == 0);
+        System.out.println("Recorded 100000 events allocating " + allocated + " bytes");
+
+        tracer.setSampleRate(0);
+        final int lookups = 10_000_000;
+        long sampled = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            sampled += tracer.begin(i, false);
+        }
+        final long nanos = System.nanoTime() - start;
+        ASSERT(sampled == 0);
+        // a volatile read and a branch; the bound only catches a tracer that does real work when idle
+        ASSERT(nanos / lookups < 1_000);
+        System.out.println("Idle tracer: " + String.format("%.2f", (double) nanos / lookups) + " ns per lookup");
+    }
+
+    public static void testUDP() {
+        System.out.println("TEST UDP TRANSPORT");
+        final int nodeCount = 20;
+        final List<UdpKademliaRPC> transports = new ArrayList<>();
+        final List<KademliaClient> clients = new ArrayList<>();
+        try {
+            Host introducer = null;
+            for (int i = 0; i < nodeCount; i++) {
+                // spread the keys over a 16 bit key space
+                final Host host = new Host("127.0.0.1", (i * 40503L) & 0xFFFF, 9100 + i);
+                final UdpKademliaRPC rpc = new UdpKademliaRPC(host);
+                final KademliaClient client = new KademliaClient(16, host, rpc, 3, false);
+                rpc.start(client);
+                client.start(introducer);
+                introducer = host;
+                transports.add(rpc);
+                clients.add(client);
+            }
+
+            System.out.println("SETUP");
+            for (int value = 0; value < 10; value++) {
+                clients.get(0).put(value * 6151L & 0xFFFF, new DataBlock(value));
+            }
+            for (int value = 0; value < 10; value++) {
+                final DataBlock data = clients.get(nodeCount - 1).get(value * 6151L & 0xFFFF);
+                System.out.println("Get " + (value * 6151L & 0xFFFF) + ": " + data);
+                ASSERT(data != null && data.getSampleValue() == value);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            ASSERT(false);
+        } finally {
+            for (UdpKademliaRPC rpc : transports) {
+                try {
+                    rpc.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Restarts one node of a UDP network twice, once from nothing and once from a routing table snapshot, and
+     * compares how long each takes before the node can route.
+     */
+    public static void testWarmRestart() {
+        System.out.println("TEST WARM RESTART");
+        final int nodeCount = 20;
+        final List<UdpKademliaRPC> transports = new ArrayList<>();
+        final List<KademliaClient> clients = new ArrayList<>();
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("kademlia-snapshot");
+            final Path snapshot = directory.resolve("routing.snapshot");
+            Host introducer = null;
+            for (int i = 0; i < nodeCount; i++) {
+                final Host host = new Host("127.0.0.1", (i * 40503L) & 0xFFFF, 9200 + i);
+                final UdpKademliaRPC rpc = new UdpKademliaRPC(host);
+                final KademliaClient client = new KademliaClient(16, host, rpc, 3, false);
+                rpc.start(client);
+                client.start(introducer);
+                introducer = host;
+                transports.add(rpc);
+                clients.add(client);
+            }
+            final Host first = new Host("127.0.0.1", 0, 9200);
+            clients.get(0).put(12345, new DataBlock(42));
+
+            // restart the last node with and without a snapshot, twice so the second round runs warmed up
+            final int last = nodeCount - 1;
+            final Host host = new Host("127.0.0.1", (last * 40503L) & 0xFFFF, 9200 + last);
+            for (boolean warm : new boolean[]{false, true, false, true}) {
+                clients.get(last).setSnapshotFile(snapshot);
+                clients.get(last).stop();
+                transports.get(last).close();
+                if (!warm) {
+                    Files.delete(snapshot);
+                }
+
+                final UdpKademliaRPC rpc = new UdpKademliaRPC(host);
+                final KademliaClient client = new KademliaClient(16, host, rpc, 3, false);
+                client.setSnapshotFile(snapshot);
+                rpc.start(client);
+                final long start = System.nanoTime();
+                client.start(first);
+                final long startNanos = System.nanoTime() - start;
+                transports.set(last, rpc);
+                clients.set(last, client);
+
+                System.out.printf("%s start: %.2f ms, %d hosts known%n",
+                        warm ? "Warm" : "Cold", startNanos / 1e6, client.allHosts().size());
+                final DataBlock data = client.get(12345);
+                ASSERT(data != null && data.getSampleValue() == 42);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            ASSERT(false);
+        } finally {
+            for (KademliaClient client : clients) {
+                client.stop();
+            }
+            for (UdpKademliaRPC rpc : transports) {
+                try {
+                    rpc.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            deleteRecursively(directory);
+        }
+    }
+
+    public static void testRoutingTableFootprint() {
+        System.out.println("TEST ROUTING TABLE FOOTPRINT");
+        final int bitLen = 64;
+        final int ksize = 20;
+        final int tableCount = 1000;
+        // a table keeps about k * log2(hostCount / k) of the hosts it is offered
+        final int hostCount = 100_000;
+        final Random random = new Random(317);
+        final AsyncKademliaRPC rpc = new AlwaysOnlineAsyncRPC();
+
+        final Host[] hosts = new Host[hostCount];
+        for (int i = 0; i < hostCount; i++) {
+            hosts[i] = new Host("10.0.0." + (i % 256), random.nextLong(), 8000);
+        }
+        final Host[] owners = new Host[tableCount];
+        for (int i = 0; i < tableCount; i++) {
+            owners[i] = new Host("10.1.0." + (i % 256), random.nextLong(), 8000);
+        }
+
+        // both kinds give the same answers. Building these first also gets class loading and the like out of the way.
+        final int checked = 20;
+        RoutingTable[] trees = buildTables(Arrays.copyOf(owners, checked), hosts,
+                owner -> new TreeRoutingTable(bitLen, owner, ksize, rpc));
+        RoutingTable[] flats = buildTables(Arrays.copyOf(owners, checked), hosts,
+                owner -> new FlatRoutingTable(bitLen, owner, ksize, rpc));
+        int treeHosts = 0;
+        int flatHosts = 0;
+        for (int i = 0; i < checked; i++) {
+            treeHosts += trees[i].allHosts().size();
+            flatHosts += flats[i].allHosts().size();
+            final long key = random.nextLong();
+            ASSERT(trees[i].getClosestHosts(key, ksize, true).equals(flats[i].getClosestHosts(key, ksize, true)));
+        }
+        trees = null;
+        flats = null;
+
+        // each kind is measured on its own, so neither set of tables is reachable while the other is measured. Memory
+        // that earlier tests let go of meanwhile makes a measurement come out low, so each kind is measured twice and
+        // the larger result kept.
+        long treeBytes = 0;
+        long flatBytes = 0;
+        for (int round = 0; round < 2; round++) {
+            treeBytes = Math.max(treeBytes, retainedHeap(() -> buildTables(owners, hosts,
+                    owner -> new TreeRoutingTable(bitLen, owner, ksize, rpc))));
+            flatBytes = Math.max(flatBytes, retainedHeap(() -> buildTables(owners, hosts,
+                    owner -> new FlatRoutingTable(bitLen, owner, ksize, rpc))));
+        }
+        System.out.println("Tree: " + treeBytes / tableCount + " bytes per table, " + treeHosts / checked + " hosts per table");
+        System.out.println("Flat: " + flatBytes / tableCount + " bytes per table, " + flatHosts / checked + " hosts per table");
+        ASSERT(treeBytes > 0);
+        ASSERT(flatBytes > 0);
+        ASSERT(flatBytes < treeBytes);
+    }
+
+    private static RoutingTable[] buildTables(Host[] owners, Host[] hosts, Function<Host, RoutingTable> factory) {
+        final RoutingTable[] tables = new RoutingTable[owners.length];
+        for (int i = 0; i < owners.length; i++) {
+            tables[i] = factory.apply(owners[i]);
+            for (Host host : hosts) {
+                tables[i].addHost(host);
+            }
+        }
+        return tables;
+    }
+
+    public static void testConcurrentStress() {
+        System.out.println("TEST CONCURRENT STRESS");
+        final int threadCount = 8;
+        final int hostsPerThread = 500;
+        final KademliaRPC rpc = new AlwaysOnlineRPC();
+
+        // buckets big enough that no host is turned away, so every add and store must still be there at the end
+        for (boolean flat : new boolean[]{false, true}) {
+            final Host self = new Host("self", 0, 8000);
+            final int ksize = threadCount * hostsPerThread + 1;
+            final RoutingTable table = flat
+                    ? new FlatRoutingTable(32, self, ksize, rpc)
+                    : new TreeRoutingTable(32, self, ksize, rpc);
+            final KademliaClient client = new KademliaClient(self, rpc, table, false);
+            runConcurrently(threadCount, thread -> {
+                final Random random = new Random(thread);
+                for (int i = 0; i < hostsPerThread; i++) {
+                    final long key = (thread * hostsPerThread + i + 1) * 2654435761L & 0xFFFFFFFFL;
+                    client.addHost(new Host("10.0." + thread + "." + i, key, 8000));
+                    client.store(key, new DataBlock(i));
+                    if (i % 10 == 0) {
+                        client.findNode(random.nextInt());
+                        client.findValue(random.nextInt());
+                    }
+                }
+            });
+            System.out.println((flat ? "Flat" : "Tree") + ": " + client.allHosts().size() + " hosts, "
+                    + client.getDataStore().size() + " values");
+            ASSERT(client.allHosts().size() == threadCount * hostsPerThread + 1);
+            ASSERT(client.getDataStore().size() == threadCount * hostsPerThread);
+        }
+
+        // small buckets, so the tree splits and full buckets turn hosts away while others are removed
+        for (boolean flat : new boolean[]{false, true}) {
+            final Host self = new Host("self", 0, 8000);
+            final RoutingTable table = flat
+                    ? new FlatRoutingTable(32, self, 8, rpc)
+                    : new TreeRoutingTable(32, self, 8, rpc);
+            runConcurrently(threadCount, thread -> {
+                final Random random = new Random(thread);
+                for (int i = 0; i < hostsPerThread * 4; i++) {
+                    final Host host = new Host("10.1." + thread + "." + i, random.nextInt() & 0xFFFFFFFFL, 8000);
+                    table.addHost(host);
+                    if (i % 3 == 0) {
+                        table.removeHost(host);
+                    }
+                    table.getClosestHosts(random.nextInt() & 0xFFFFFFFFL, 8, true);
+                }
+            });
+
+            final Set<Host> seen = new HashSet<>();
+            for (Bucket bucket : table.getAllBuckets()) {
+                ASSERT(bucket.size() <= 8);
+                for (Host host : bucket.getNodesInBucket()) {
+                    ASSERT(seen.add(host));
+                    ASSERT(table.getClosestBucket(host.getKey()).contains(host));
+                }
+            }
+            System.out.println((flat ? "Flat" : "Tree") + ": " + table.getAllBuckets().size() + " buckets, "
+                    + seen.size() + " hosts, consistent");
+        }
+    }
+
+    // Runs a task on several threads at once and waits for all of them, failing if any of them threw
+    private static void runConcurrently(int threadCount, IntConsumer task) {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < threadCount; i++) {
+            final int thread = i;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    task.accept(thread);
+                } catch (Throwable throwable) {
+                    failures.add(throwable);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Throwable failure : failures) {
+            failure.printStackTrace();
+        }
+        ASSERT(failures.isEmpty());
+    }
+
+    public static void testLogStructuredStorage() {
+        System.out.println("TEST LOG STRUCTURED STORAGE");
+        final int keyCount = 5000;
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("kademlia-storage");
+            final Host self = new Host("ip0", 0, 8000);
+            // small segments so the test rolls over and compacts several of them
+            LogStructuredStorageEngine engine = new LogStructuredStorageEngine(directory, 16 * 1024, 0);
+            final KademliaRPC rpc = new AlwaysOnlineRPC();
+            final KademliaClient client = new KademliaClient(self, rpc, new FlatRoutingTable(64, self, 20, rpc),
+                    engine, false);
+            for (int round = 0; round < 4; round++) {
+                for (int i = 0; i < keyCount; i++) {
+                    client.store(i * 0x9E3779B97F4A7C15L, new DataBlock(round * keyCount + i));
+                }
+            }
+            final int segmentsBefore = engine.segmentCount();
+            engine.compact();
+            System.out.println("Segments before compaction: " + segmentsBefore + ", after: " + engine.segmentCount());
+            ASSERT(engine.segmentCount() < segmentsBefore);
+            engine.close();
+
+            // a restart finds every value where the last round left it
+            engine = new LogStructuredStorageEngine(directory, 16 * 1024, 0);
+            ASSERT(engine.size() == keyCount);
+            for (int i = 0; i < keyCount; i++) {
+                final DataBlock data = engine.get(i * 0x9E3779B97F4A7C15L);
+                ASSERT(data != null && data.getSampleValue() == 3 * keyCount + i);
+            }
+            ASSERT(!engine.contains(1));
+            engine.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            ASSERT(false);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Measures how fast values of different sizes go into a log-structured store and back out as encoded findValue
+     * answers, the path a node takes when it serves a value.
+     */
+    public static void testPayloadThroughput() {
+        System.out.println("TEST PAYLOAD THROUGHPUT");
+        final int totalBytes = 16 * 1024 * 1024;
+        final ByteBuffer wire = ByteBuffer.allocateDirect(2 * 1024 * 1024);
+        for (int valueSize : new int[]{1024, 64 * 1024, 1024 * 1024}) {
+            Path directory = null;
+            try {
+                directory = Files.createTempDirectory("kademlia-payload");
+                final Host self = new Host("ip0", 0, 8000);
+                final KademliaRPC rpc = new AlwaysOnlineRPC();
+                final LogStructuredStorageEngine engine = new LogStructuredStorageEngine(directory,
+                        LogStructuredStorageEngine.DEFAULT_SEGMENT_BYTES, 0);
+                final KademliaClient client = new KademliaClient(self, rpc, new FlatRoutingTable(64, self, 20, rpc),
+                        engine, false);
+
+                final int count = totalBytes / valueSize;
+                final byte[] payload = new byte[valueSize];
+                new Random(valueSize).nextBytes(payload);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    client.store(i, new DataBlock(payload));
+                }
+                final long storeNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    wire.clear();
+                    MessageCodec.writeSearchResult(wire, client.findValue(i));
+                    wire.flip();
+                    final DataBlock data = MessageCodec.readSearchResult(wire).getData();
+                    ASSERT(data != null && data.size() == valueSize);
+                }
+                final long findNanos = System.nanoTime() - start;
+                ASSERT(Arrays.equals(client.findValue(count - 1).getData().toByteArray(), payload));
+
+                System.out.printf("%7d byte values: store %8.0f ops/s %7.1f MB/s, findValue %8.0f ops/s %7.1f MB/s%n",
+                        valueSize,
+                        count * 1e9 / storeNanos, totalBytes * 1e9 / storeNanos / (1 << 20),
+                        count * 1e9 / findNanos, totalBytes * 1e9 / findNanos / (1 << 20));
+                engine.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                ASSERT(false);
+            } finally {
+                deleteRecursively(directory);
+            }
+        }
+    }
+
+    /**
+     * Runs a simulated network of a few thousand nodes twice with the same seed, checking that both runs come out the
+     * same, that nodes joining after the puts are handed the values they are now closest to, and that lookups and gets
+     * find what they should, then again with message loss, churn and republishing.
+     */
+    public static void testNetworkSimulator() {
+        System.out.println("TEST NETWORK SIMULATOR");
+        final int nodeCount = 2000;
+        String[] runs = new String[2];
+        for (int run = 0; run < runs.length; run++) {
+            final NetworkSimulator simulator = new NetworkSimulator(42);
+            simulator.setLatency(LatencyModel.logNormal(40, 0.5));
+            simulator.join(nodeCount, 5);
+            simulator.runUntilDone();
+            ASSERT(simulator.onlineCount() == nodeCount);
+            ASSERT(simulator.getJoins().successRate() == 1);
+
+            simulator.resetReports();
+            simulator.put(200, 5);
+            simulator.runUntilDone();
+            ASSERT(simulator.closestHolderShare() == 1);
+            // some of these become the closest node to a key, and have to be handed it
+            simulator.join(200, 5);
+            simulator.runUntilDone();
+            ASSERT(simulator.getHandoffs().getFinished() > 0);
+            ASSERT(simulator.getHandoffs().successRate() == 1);
+            ASSERT(simulator.closestHolderShare() == 1);
+            simulator.get(500, 2);
+            simulator.lookup(500, 2);
+            simulator.runUntilDone();
+            ASSERT(simulator.getPuts().successRate() == 1);
+            ASSERT(simulator.getGets().successRate() == 1);
+            ASSERT(simulator.getLookups().successRate() > 0.99);
+            ASSERT(simulator.getLookups().getHops().mean() < 6);
+            runs[run] = simulator.getPuts() + "\n" + simulator.getHandoffs() + "\n" + simulator.getGets() + "\n"
+                    + simulator.getLookups();
+        }
+        System.out.println(runs[0]);
+        ASSERT(runs[0].equals(runs[1]));
+
+        final NetworkSimulator simulator = new NetworkSimulator(7);
+        simulator.setLatency(LatencyModel.logNormal(40, 0.5));
+        simulator.setLossRate(0.02);
+        simulator.setRepublishIntervalMillis(2 * 60_000);
+        simulator.join(nodeCount, 5);
+        simulator.runUntilDone();
+        simulator.put(200, 5);
+        simulator.runUntilDone();
+        simulator.resetReports();
+        // about a fifth of the nodes offline at any time
+        simulator.startChurn(20 * 60_000, 5 * 60_000);
+        simulator.run(10 * 60_000);
+        simulator.get(500, 2);
+        simulator.lookup(500, 2);
+        simulator.runUntilDone();
+        System.out.println("With 2% loss and churn, " + simulator.onlineCount() + " of " + nodeCount + " online, "
+                + "closest node holds " + simulator.closestHolderShare() * 100 + "% of keys:");
+        System.out.println(simulator.getGets() + "\n" + simulator.getLookups() + "\n" + simulator.getHandoffs() + "\n"
+                + simulator.getRepublishes());
+        ASSERT(simulator.onlineCount() < nodeCount);
+        ASSERT(simulator.getHandoffs().successRate() > 0.9);
+        ASSERT(simulator.getRepublishes().getFinished() > 0);
+        ASSERT(simulator.getRepublishes().successRate() > 0.8);
+        ASSERT(simulator.closestHolderShare() > 0.85);
+        ASSERT(simulator.getGets().successRate() > 0.9);
+        ASSERT(simulator.getLookups().successRate() > 0.8);
+    }
+
+    private static void deleteRecursively(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Heap retained by what build returns. The garbage of the build itself is collected before measuring, and nothing
+    // else may be allocated meanwhile.
+    private static long retainedHeap(Supplier<?> build) {
+        final long before = settledHeap();
+        final Object built = build.get();
+        final long after = settledHeap();
+        Reference.reachabilityFence(built);
+        return after - before;
+    }
+
+    // Used heap with only what is reachable for good. Nodes left running by earlier tests still do background work, and
+    // a collection that catches one of them mid-task counts its temporary garbage too, so this collects until the
+    // lowest reading has held for several collections in a row.
+    private static long settledHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        long lowest = Long.MAX_VALUE;
+        int unchanged = 0;
+        for (int i = 0; i < 50 && unchanged < 5; i++) {
+            System.gc();
+            final long used = runtime.totalMemory() - runtime.freeMemory();
+            if (used < lowest - 16 * 1024) {
+                unchanged = 0;
+            } else {
+                unchanged++;
+            }
+            lowest = Math.min(lowest, used);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return lowest;
+    }
+
     private static void testRPC() {
         try {
             final InetAddress inetAddress = InetAddress.getLocalHost();
@@ -271,7 +1542,7 @@ public class Main {
             System.out.println("Your local key is: " + encodedHostAddress);
 
             final Host host = new Host(hostAddress, encodedHostAddress, port);
-            final KademliaRPC rpc = new KademliaRPCImpl();
+            final KademliaRPCImpl rpc = new KademliaRPCImpl();
             final KademliaClient client = new KademliaClient(32, host, rpc, 3, true);
 
             while (true) {
@@ -296,6 +1567,7 @@ public class Main {
 
                 System.out.println("Displaying any data written to this host in the meantime");
                 System.out.println(client.getDataStore());
+                System.out.println("Stub cache hits: " + rpc.getStubHits() + ", misses: " + rpc.getStubMisses());
             }
         } catch (UnknownHostException e) {
             e.printStackTrace();
@@ -309,6 +1581,24 @@ public class Main {
         testLeave();
         testRepublish();
         testJoinReplication();
+        testRepublishScheduler();
+        testJoinHandoff();
+        testReplacementCache();
+        testLatencyAwareLookup();
+        testHedgedGet();
+        testSlowPeerKept();
+        testBucketRefresh();
+        testValueCache();
+        testLookupCoalescing();
+        testMetrics();
+        testLookupTracing();
+        testUDP();
+        testWarmRestart();
+        testRoutingTableFootprint();
+        testConcurrentStress();
+        testLogStructuredStorage();
+        testPayloadThroughput();
+        testNetworkSimulator();
 //        testRPC();
     }
 }
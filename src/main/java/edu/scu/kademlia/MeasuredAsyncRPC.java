@@ -0,0 +1,84 @@
+package edu.scu.kademlia;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Times every RPC sent through another {@link AsyncKademliaRPC} and reports the outcome to a {@link PeerStats} and
+ * to the node's {@link NodeMetrics}.
+ */
+public class MeasuredAsyncRPC implements AsyncKademliaRPC {
+    private final AsyncKademliaRPC rpc;
+
+    private final PeerStats stats;
+
+    private final NodeMetrics metrics;
+
+    public MeasuredAsyncRPC(AsyncKademliaRPC rpc, PeerStats stats, NodeMetrics metrics) {
+        this.rpc = rpc;
+        this.stats = stats;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public CompletableFuture<List<Host>> findNode(Host host, long key, boolean isNew, long timeoutMillis) {
+        long start = System.nanoTime();
+        return measure(NodeMetrics.Rpc.FIND_NODE, host, rpc.findNode(host, key, isNew, timeoutMillis), start);
+    }
+
+    @Override
+    public CompletableFuture<HostSearchResult> findValue(Host host, long key, long timeoutMillis) {
+        long start = System.nanoTime();
+        return measure(NodeMetrics.Rpc.FIND_VALUE, host, rpc.findValue(host, key, timeoutMillis), start);
+    }
+
+    @Override
+    public CompletableFuture<Void> store(Host host, long key, DataBlock data, long timeoutMillis) {
+        long start = System.nanoTime();
+        return measure(NodeMetrics.Rpc.STORE, host, rpc.store(host, key, data, timeoutMillis), start);
+    }
+
+    @Override
+    public CompletableFuture<Void> storeBatch(Host host, Map<Long, DataBlock> entries, long timeoutMillis) {
+        long start = System.nanoTime();
+        return measure(NodeMetrics.Rpc.STORE_BATCH, host, rpc.storeBatch(host, entries, timeoutMillis), start);
+    }
+
+    @Override
+    public CompletableFuture<Void> cache(Host host, long key, DataBlock data, long timeoutMillis) {
+        long start = System.nanoTime();
+        return measure(NodeMetrics.Rpc.CACHE, host, rpc.cache(host, key, data, timeoutMillis), start);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> ping(Host host, long timeoutMillis) {
+        long start = System.nanoTime();
+        RpcMetrics ping = metrics.rpc(NodeMetrics.Rpc.PING);
+        return rpc.ping(host, timeoutMillis).whenComplete((alive, error) -> {
+            long rttNanos = System.nanoTime() - start;
+            if (error == null && alive) {
+                stats.answered(host, rttNanos);
+                ping.answered(rttNanos);
+            } else {
+                stats.failed(host);
+                ping.failed();
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> measure(NodeMetrics.Rpc type, Host host, CompletableFuture<T> response,
+                                             long start) {
+        RpcMetrics rpcMetrics = metrics.rpc(type);
+        return response.whenComplete((result, error) -> {
+            long rttNanos = System.nanoTime() - start;
+            if (error == null) {
+                stats.answered(host, rttNanos);
+                rpcMetrics.answered(rttNanos);
+            } else {
+                stats.failed(host);
+                rpcMetrics.failed();
+            }
+        });
+    }
+}
@@ -0,0 +1,155 @@
+package edu.scu.kademlia;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary wire format used by {@link UdpKademliaRPC}. Every message starts with a one byte type and a four byte
+ * request ID; responses reuse the ID of the request they answer and set the high bit of the type. Requests then
+ * carry the key and port of the sender so the receiver can add it to its routing table. The sender's IP is taken
+ * from the datagram itself.
+ *
+ * <pre>
+ * request header:  type(1) requestId(4) senderKey(8) senderPort(4)
+ * response header: type(1) requestId(4)
+ *
+ * FIND_NODE  request: key(8) isNew(1)     response: hosts
+ * FIND_VALUE request: key(8)              response: hasData(1) then data or hosts
+ * STORE      request: key(8) data         response: empty
+ * STORE_BATCH request: count(2) then count * [key(8) data]   response: empty
+ * PING       request: empty               response: alive(1)
+ * CACHE      request: key(8) data         response: empty
+ *
+ * hosts: count(2) then count * [key(8) port(4) ipLength(1) ip(ipLength)]
+ * data:  length(4) payload(length)
+ * </pre>
+ */
+final class MessageCodec {
+    static final byte FIND_NODE = 1;
+    static final byte FIND_VALUE = 2;
+    static final byte STORE = 3;
+    static final byte PING = 4;
+    static final byte STORE_BATCH = 5;
+    static final byte CACHE = 6;
+
+    static final byte RESPONSE = (byte) 0x80;
+
+    // type(1) + requestId(4)
+    static final int HEADER_SIZE = 5;
+
+    // senderKey(8) + senderPort(4)
+    static final int SENDER_SIZE = 12;
+
+    // The largest payload a UDP datagram can carry
+    static final int MAX_MESSAGE_SIZE = 65507;
+
+    // The room left for the body of a request
+    static final int MAX_REQUEST_BODY = MAX_MESSAGE_SIZE - HEADER_SIZE - SENDER_SIZE;
+
+    // The largest data a STORE or CACHE request has room for: the body minus the key
+    static final int MAX_DATA_SIZE = MAX_REQUEST_BODY - Long.BYTES;
+
+    private MessageCodec() {
+    }
+
+    static boolean isResponse(byte type) {
+        return (type & RESPONSE) != 0;
+    }
+
+    static byte requestType(byte type) {
+        return (byte) (type & ~RESPONSE);
+    }
+
+    static void writeHeader(ByteBuffer buffer, byte type, int requestId) {
+        buffer.put(type);
+        buffer.putInt(requestId);
+    }
+
+    static void writeRequestHeader(ByteBuffer buffer, byte type, int requestId, Host sender) {
+        writeHeader(buffer, type, requestId);
+        buffer.putLong(sender.getKey());
+        buffer.putInt(sender.getPort());
+    }
+
+    /**
+     * Reads the sender fields of a request header.
+     *
+     * @param ip the address the datagram came from
+     */
+    static Host readSender(ByteBuffer buffer, String ip) {
+        long key = buffer.getLong();
+        int port = buffer.getInt();
+        return new Host(ip, key, port);
+    }
+
+    static void writeHosts(ByteBuffer buffer, List<Host> hosts) {
+        buffer.putShort((short) hosts.size());
+        for (Host host : hosts) {
+            byte[] ip = host.getIp().getBytes(StandardCharsets.UTF_8);
+            buffer.putLong(host.getKey());
+            buffer.putInt(host.getPort());
+            buffer.put((byte) ip.length);
+            buffer.put(ip);
+        }
+    }
+
+    static List<Host> readHosts(ByteBuffer buffer) {
+        int count = buffer.getShort() & 0xFFFF;
+        List<Host> hosts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long key = buffer.getLong();
+            int port = buffer.getInt();
+            byte[] ip = new byte[buffer.get() & 0xFF];
+            buffer.get(ip);
+            hosts.add(new Host(new String(ip, StandardCharsets.UTF_8), key, port));
+        }
+        return hosts;
+    }
+
+    static void writeData(ByteBuffer buffer, DataBlock data) {
+        data.writeTo(buffer);
+    }
+
+    static DataBlock readData(ByteBuffer buffer) {
+        return DataBlock.readFrom(buffer);
+    }
+
+    static void writeEntries(ByteBuffer buffer, Map<Long, DataBlock> entries) {
+        buffer.putShort((short) entries.size());
+        for (var entry : entries.entrySet()) {
+            buffer.putLong(entry.getKey());
+            writeData(buffer, entry.getValue());
+        }
+    }
+
+    static Map<Long, DataBlock> readEntries(ByteBuffer buffer) {
+        int count = buffer.getShort() & 0xFFFF;
+        Map<Long, DataBlock> entries = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            long key = buffer.getLong();
+            entries.put(key, readData(buffer));
+        }
+        return entries;
+    }
+
+    static void writeSearchResult(ByteBuffer buffer, HostSearchResult result) {
+        if (result.getData() != null) {
+            buffer.put((byte) 1);
+            writeData(buffer, result.getData());
+        } else {
+            buffer.put((byte) 0);
+            writeHosts(buffer, result.getNextHost());
+        }
+    }
+
+    static HostSearchResult readSearchResult(ByteBuffer buffer) {
+        if (buffer.get() != 0) {
+            return new HostSearchResult(readData(buffer));
+        }
+        return new HostSearchResult(readHosts(buffer));
+    }
+}
@@ -0,0 +1,866 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A discrete-event simulation of a Kademlia network, for trying out routing and replication changes on far more
+ * nodes than fit in real processes. Time is simulated: the events wait in a priority queue and run one after the
+ * other on the calling thread, each moving the clock to its own time. Nothing depends on the wall clock, the thread
+ * scheduler or hash ordering of objects, so a run is repeated exactly by using the same seed.
+ *
+ * Every node has a real {@link RoutingTable} and {@link PeerStats}, and runs the same {@link IterativeLookup} as
+ * {@link KademliaClient}, with its adaptive timeouts, hedged findValue queries and latency-aware ordering. Each
+ * message crossing the network is delayed by the latency model and dropped with probability lossRate; a query that
+ * gets no answer within its timeout fails. Nodes learn of the nodes that query them, and full buckets ping their least
+ * recently seen host over the same simulated network.
+ *
+ * Values are replicated the way KademliaClient replicates them, by {@link Replication}: a node asked by a joining
+ * node for its closest hosts hands it the values it now has to hold, and every node holding values republishes them
+ * to the k closest hosts it knows of once they come due on its {@link RepublishScheduler}, checked every
+ * republishTickMillis. {@link #closestHolderShare()} tells how well that keeps each value where gets look for it.
+ *
+ * With churn, every node alternates between online sessions and downtime of exponentially distributed length. A node
+ * that comes back keeps its routing table and stored values, like a restarted client with a snapshot and a
+ * log-structured store, and joins again by looking up its own key.
+ *
+ * Not simulated: value caching and bucket refresh.
+ *
+ * Operations are scheduled with {@link #join}, {@link #put}, {@link #get} and {@link #lookup}, then carried out by
+ * {@link #runUntilDone()}. Each kind of operation has a {@link Report} of its success rate, hop counts, RPCs and
+ * latencies, and so do the handoffs and republishes, one for every host values were sent to.
+ */
+public class NetworkSimulator {
+    // Default size of each bucket, as in the Kademlia paper
+    public static final int DEFAULT_KSIZE = 20;
+
+    // Default time a query to a peer without a known round trip time waits for its answer
+    public static final long DEFAULT_RPC_TIMEOUT_MILLIS = 1000;
+
+    // Default number of peers each node keeps round trip times for, far fewer than a client so that large networks fit
+    public static final int DEFAULT_MAX_PEERS = 256;
+
+    // Default time between checks for keys that are due to be republished
+    public static final long DEFAULT_REPUBLISH_TICK_MILLIS = 10_000;
+
+    // The answer to a query that timed out. Shared, since a run may time out millions of queries.
+    private static final TimeoutException TIMED_OUT = new TimeoutException("No answer within the RPC timeout");
+
+    // The value every put stores. Only whether a node holds a key matters here.
+    private static final DataBlock VALUE = new DataBlock(0);
+
+    // Size of each bucket
+    @Getter @Setter
+    private int ksize = DEFAULT_KSIZE;
+
+    // The number of concurrent RPCs a lookup may have outstanding
+    @Getter @Setter
+    private int alpha = KademliaClient.DEFAULT_ALPHA;
+
+    // How long each RPC waits for its answer. Lookup queries to peers with a known round trip time wait less.
+    @Getter @Setter
+    private long rpcTimeoutMillis = DEFAULT_RPC_TIMEOUT_MILLIS;
+
+    // The shortest a lookup query's adaptive timeout may be
+    @Getter @Setter
+    private long minRpcTimeoutMillis = KademliaClient.DEFAULT_MIN_RPC_TIMEOUT_MILLIS;
+
+    // How many requests in a row a host may fail before a lookup drops it
+    @Getter @Setter
+    private int maxQueryFailures = KademliaClient.DEFAULT_MAX_QUERY_FAILURES;
+
+    // Whether a findValue query that is slower than its peer's 95th percentile lets the lookup query another host
+    @Getter @Setter
+    private boolean hedgeFindValue = true;
+
+    // Whether lookups query the faster of equally close hosts first
+    @Getter @Setter
+    private boolean preferLowLatency = true;
+
+    // How many peers each node joining from now on keeps round trip times for
+    @Getter @Setter
+    private int maxPeers = DEFAULT_MAX_PEERS;
+
+    // Time between two publications of a key, for nodes storing their first key from now on
+    @Getter @Setter
+    private long republishIntervalMillis = RepublishScheduler.DEFAULT_INTERVAL_MILLIS;
+
+    // How often a node holding values asks its republish scheduler for due keys
+    @Getter @Setter
+    private long republishTickMillis = DEFAULT_REPUBLISH_TICK_MILLIS;
+
+    // One-way delay of each message
+    @Getter @Setter
+    private LatencyModel latency = LatencyModel.constant(0);
+
+    // Share of messages lost on the way, each way of an RPC on its own
+    @Getter @Setter
+    private double lossRate;
+
+    // Whether nodes joining from now on get a FlatRoutingTable rather than a TreeRoutingTable
+    @Getter @Setter
+    private boolean flatRoutingTable = true;
+
+    // Mean length of a node's online sessions, or 0 while churn is off
+    private long meanSessionNanos;
+
+    // Mean time a node stays offline between sessions, or 0 for nodes that leave for good
+    private long meanDowntimeNanos;
+
+    private final Random random;
+
+    // The simulated time in nanoseconds
+    @Getter
+    private long now;
+
+    // Breaks ties between events due at the same time, so they run in the order they were scheduled
+    private long nextSequence;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+    // Every node that ever joined, by key
+    private final Map<Long, Node> nodes = new HashMap<>();
+
+    // The nodes online now, in no particular order, so that one can be picked at random
+    private final List<Node> online = new ArrayList<>();
+
+    // The keys whose put succeeded, for gets to read
+    private final List<Long> storedKeys = new ArrayList<>();
+
+    // Operations scheduled and not finished yet
+    private int unfinished;
+
+    @Getter
+    private long messagesSent;
+
+    @Getter
+    private long messagesLost;
+
+    @Getter
+    private final Report joins = new Report("join");
+
+    @Getter
+    private final Report puts = new Report("put");
+
+    @Getter
+    private final Report gets = new Report("get");
+
+    @Getter
+    private final Report lookups = new Report("lookup");
+
+    @Getter
+    private final Report handoffs = new Report("handoff");
+
+    @Getter
+    private final Report republishes = new Report("republish");
+
+    public NetworkSimulator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Schedules count nodes with random keys to join, one every intervalMillis from now. Each joins through a random
+     * node already online, by looking up its own key. The first node of the network just goes online.
+     */
+    public void join(int count, double intervalMillis) {
+        repeat(count, intervalMillis, () -> {
+            long key = random.nextLong();
+            while (key == 0 || nodes.containsKey(key)) {
+                key = random.nextLong();
+            }
+            Host host = new Host("10." + (nodes.size() >> 16 & 0xff) + "." + (nodes.size() >> 8 & 0xff) + "."
+                    + (nodes.size() & 0xff), key, 8000);
+            Node node = new Node(host);
+            nodes.put(key, node);
+            Node introducer = randomOnline();
+            goOnline(node);
+            if (introducer == null) {
+                finish(joins, now, true, 0, 0);
+                return;
+            }
+            node.table.addHost(introducer.host);
+            joinLookup(node, true);
+        });
+    }
+
+    /**
+     * Looks up the node's own key and adds every host found, the way KademliaClient joins. The nodes it asks hand it
+     * the values it is now one of the k closest hosts for.
+     *
+     * @param scheduled whether this is a join scheduled by {@link #join} rather than a node back from downtime
+     */
+    private void joinLookup(Node node, boolean scheduled) {
+        long start = now;
+        startLookup(node, node.host.getKey(), true, false, lookup -> {
+            for (Host host : lookup.getHosts()) {
+                node.table.addHost(host);
+            }
+            joins.finished(now - start, node.online && lookup.getHosts().size() > 1, lookup.getHops(),
+                    lookup.getSent());
+            if (scheduled) {
+                unfinished--;
+            }
+        });
+    }
+
+    /**
+     * Schedules count puts of new random keys, one every intervalMillis from now, each from a random online node. A
+     * put looks up the k closest nodes and stores the value on each; it succeeds if at least one of them confirms.
+     */
+    public void put(int count, double intervalMillis) {
+        repeat(count, intervalMillis, () -> {
+            Node node = randomOnline();
+            if (node == null) {
+                finish(puts, now, false, 0, 0);
+                return;
+            }
+            long key = random.nextLong();
+            long start = now;
+            startLookup(node, key, false, false, lookup -> {
+                List<Host> closest = lookup.getHosts();
+                // stores not answered yet, and stores confirmed
+                int[] waiting = {closest.size()};
+                int[] confirmed = {0};
+                int rpcs = lookup.getSent() + closest.size() - (closest.contains(node.host) ? 1 : 0);
+                Consumer<Boolean> storeDone = success -> {
+                    if (success) {
+                        confirmed[0]++;
+                    }
+                    if (--waiting[0] == 0) {
+                        if (confirmed[0] > 0) {
+                            storedKeys.add(key);
+                        }
+                        finish(puts, start, confirmed[0] > 0, lookup.getHops(), rpcs);
+                    }
+                };
+                for (Host target : closest) {
+                    if (target.equals(node.host)) {
+                        node.store(key);
+                        storeDone.accept(true);
+                    } else {
+                        node.rpc.store(target, key, VALUE, rpcTimeoutMillis)
+                                .whenComplete((ignored, error) -> storeDone.accept(error == null));
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * Schedules count reads of keys stored by earlier puts, one every intervalMillis from now, each from a random
+     * online node. A node holding the key answers it without any RPC; the others look it up with findValue.
+     */
+    public void get(int count, double intervalMillis) {
+        repeat(count, intervalMillis, () -> {
+            Node node = randomOnline();
+            if (node == null || storedKeys.isEmpty()) {
+                finish(gets, now, false, 0, 0);
+                return;
+            }
+            long key = storedKeys.get(random.nextInt(storedKeys.size()));
+            if (node.has(key)) {
+                finish(gets, now, true, 0, 0);
+                return;
+            }
+            long start = now;
+            startLookup(node, key, false, true, lookup ->
+                    finish(gets, start, node.online && lookup.getData() != null, lookup.getHops(), lookup.getSent()));
+        });
+    }
+
+    /**
+     * Schedules count node lookups of random keys, one every intervalMillis from now, each from a random online node.
+     * A lookup succeeds if the closest host it returns is the closest node online when it ends.
+     */
+    public void lookup(int count, double intervalMillis) {
+        repeat(count, intervalMillis, () -> {
+            Node node = randomOnline();
+            if (node == null) {
+                finish(lookups, now, false, 0, 0);
+                return;
+            }
+            long key = random.nextLong();
+            long start = now;
+            startLookup(node, key, false, false, lookup -> {
+                boolean success = node.online && !lookup.getHosts().isEmpty()
+                        && lookup.getHosts().get(0).equals(closestOnline(key).host);
+                finish(lookups, start, success, lookup.getHops(), lookup.getSent());
+            });
+        });
+    }
+
+    /**
+     * Starts churn: from now on every online node goes offline after a session of exponentially distributed length
+     * with the given mean, and comes back after a downtime with the given mean, or never if it is 0.
+     */
+    public void startChurn(double meanSessionMillis, double meanDowntimeMillis) {
+        boolean wasOff = meanSessionNanos == 0;
+        meanSessionNanos = (long) (meanSessionMillis * 1_000_000);
+        meanDowntimeNanos = (long) (meanDowntimeMillis * 1_000_000);
+        if (wasOff) {
+            for (Node node : new ArrayList<>(online)) {
+                scheduleLeave(node);
+            }
+        }
+    }
+
+    /**
+     * Stops churn. Nodes offline now come back as planned, and no node leaves any more.
+     */
+    public void stopChurn() {
+        meanSessionNanos = 0;
+    }
+
+    /**
+     * Runs events until every operation scheduled so far has finished. Churn carries on only as long as that.
+     */
+    public void runUntilDone() {
+        while (unfinished > 0 && !events.isEmpty()) {
+            Event event = events.poll();
+            now = event.time;
+            event.action.run();
+        }
+    }
+
+    /**
+     * Runs the events due within the next durationMillis, such as churn, and moves the clock to the end of it.
+     */
+    public void run(double durationMillis) {
+        long end = now + (long) (durationMillis * 1_000_000);
+        while (!events.isEmpty() && events.peek().time <= end) {
+            Event event = events.poll();
+            now = event.time;
+            event.action.run();
+        }
+        now = end;
+    }
+
+    /**
+     * @return the number of nodes online now
+     */
+    public int onlineCount() {
+        return online.size();
+    }
+
+    /**
+     * @return the number of nodes that ever joined
+     */
+    public int nodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * @return the mean number of hosts in the routing tables of the nodes online now
+     */
+    public double meanTableSize() {
+        long hosts = 0;
+        for (Node node : online) {
+            for (Bucket bucket : node.table.getAllBuckets()) {
+                hosts += bucket.size();
+            }
+        }
+        return online.isEmpty() ? 0 : (double) hosts / online.size();
+    }
+
+    /**
+     * @return the share of the keys stored by puts that the online node closest to each holds, from 0 to 1. A get
+     * reaching that node finds the value, so this is what handoff and republishing have to keep up under churn.
+     */
+    public double closestHolderShare() {
+        if (storedKeys.isEmpty() || online.isEmpty()) {
+            return 0;
+        }
+        int held = 0;
+        for (long key : storedKeys) {
+            if (closestOnline(key).has(key)) {
+                held++;
+            }
+        }
+        return (double) held / storedKeys.size();
+    }
+
+    /**
+     * Clears the reports, to measure a new phase of a run on its own.
+     */
+    public void resetReports() {
+        joins.reset();
+        puts.reset();
+        gets.reset();
+        lookups.reset();
+        handoffs.reset();
+        republishes.reset();
+        messagesSent = 0;
+        messagesLost = 0;
+    }
+
+    private void schedule(long delayNanos, Runnable action) {
+        events.add(new Event(now + delayNanos, nextSequence++, action));
+    }
+
+    private void repeat(int count, double intervalMillis, Runnable operation) {
+        unfinished += count;
+        for (int i = 0; i < count; i++) {
+            schedule((long) (i * intervalMillis * 1_000_000), operation);
+        }
+    }
+
+    private void finish(Report report, long start, boolean success, int hops, int rpcs) {
+        report.finished(now - start, success, hops, rpcs);
+        unfinished--;
+    }
+
+    /**
+     * Runs a lookup from node with the simulator's settings. The callback runs as an event of its own, so that an
+     * exception in it ends the run rather than vanishing into the lookup's future.
+     */
+    private void startLookup(Node node, long key, boolean isNew, boolean findValue, Consumer<IterativeLookup> done) {
+        IterativeLookup lookup = new SimulatedLookup(node, key, isNew, findValue);
+        lookup.setAlpha(alpha);
+        lookup.setRpcTimeoutMillis(rpcTimeoutMillis);
+        lookup.setMinRpcTimeoutMillis(minRpcTimeoutMillis);
+        lookup.setMaxQueryFailures(maxQueryFailures);
+        lookup.setHedge(hedgeFindValue);
+        lookup.setPreferLowLatency(preferLowLatency);
+        lookup.start(node.table.getClosestHosts(key, ksize, false)).whenComplete((ended, error) -> schedule(0, () -> {
+            if (error != null) {
+                throw new IllegalStateException("Lookup failed", error);
+            }
+            done.accept(ended);
+        }));
+    }
+
+    /**
+     * Sends values to a host in storeBatch RPCs, as KademliaClient does, and reports whether every batch arrived. A
+     * host that missed one is dropped from the sender's routing table.
+     */
+    private void transfer(Node node, Host target, List<Map.Entry<Long, DataBlock>> entries, Report report) {
+        long start = now;
+        List<Map<Long, DataBlock>> batches = Replication.batches(entries, KademliaClient.DEFAULT_MAX_BATCH_BYTES);
+        // batches not answered yet, and whether all that were answered arrived
+        int[] waiting = {batches.size()};
+        boolean[] sent = {true};
+        for (Map<Long, DataBlock> batch : batches) {
+            node.rpc.storeBatch(target, batch, rpcTimeoutMillis).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    sent[0] = false;
+                }
+                if (--waiting[0] == 0) {
+                    if (!sent[0]) {
+                        node.table.removeHost(target);
+                    }
+                    report.finished(now - start, sent[0], 0, batches.size());
+                }
+            });
+        }
+    }
+
+    // Keeps a republish tick scheduled for a node holding values, until it goes offline
+    private void scheduleRepublish(Node node) {
+        if (node.republishing) {
+            return;
+        }
+        node.republishing = true;
+        schedule(republishTickMillis * 1_000_000, () -> {
+            node.republishing = false;
+            if (!node.online) {
+                return;
+            }
+            Replication.republish(node.table, node.data, node.republisher)
+                    .forEach((host, entries) -> transfer(node, host, entries, republishes));
+            scheduleRepublish(node);
+        });
+    }
+
+    private Node randomOnline() {
+        return online.isEmpty() ? null : online.get(random.nextInt(online.size()));
+    }
+
+    // Scans every node, since only a lookup's end is checked against it
+    private Node closestOnline(long key) {
+        Node closest = null;
+        for (Node node : online) {
+            if (closest == null || Long.compareUnsigned(node.host.getKey() ^ key, closest.host.getKey() ^ key) < 0) {
+                closest = node;
+            }
+        }
+        return closest;
+    }
+
+    private void goOnline(Node node) {
+        node.online = true;
+        node.onlineIndex = online.size();
+        online.add(node);
+        if (meanSessionNanos > 0) {
+            scheduleLeave(node);
+        }
+        if (node.data != null) {
+            scheduleRepublish(node);
+        }
+    }
+
+    private void scheduleLeave(Node node) {
+        schedule(exponential(meanSessionNanos), () -> {
+            if (!node.online || meanSessionNanos == 0) {
+                return;
+            }
+            goOffline(node);
+            if (meanDowntimeNanos > 0) {
+                schedule(exponential(meanDowntimeNanos), () -> {
+                    goOnline(node);
+                    joinLookup(node, false);
+                });
+            }
+        });
+    }
+
+    private void goOffline(Node node) {
+        node.online = false;
+        Node last = online.remove(online.size() - 1);
+        if (last != node) {
+            online.set(node.onlineIndex, last);
+            last.onlineIndex = node.onlineIndex;
+        }
+    }
+
+    private long exponential(long meanNanos) {
+        return (long) (-meanNanos * Math.log(1 - random.nextDouble()));
+    }
+
+    /**
+     * The statistics of one kind of operation. Hops count the answers that brought a host closer than any known
+     * before, the way NodeMetrics counts them; RPCs count every query and store sent.
+     */
+    public static class Report {
+        @Getter
+        private final String name;
+
+        @Getter
+        private long finished;
+
+        @Getter
+        private long succeeded;
+
+        @Getter
+        private LatencyHistogram latencyNanos = new LatencyHistogram();
+
+        @Getter
+        private LatencyHistogram hops = new LatencyHistogram();
+
+        @Getter
+        private LatencyHistogram rpcs = new LatencyHistogram();
+
+        Report(String name) {
+            this.name = name;
+        }
+
+        void finished(long nanos, boolean success, int hopCount, int rpcCount) {
+            finished++;
+            if (success) {
+                succeeded++;
+            }
+            latencyNanos.record(nanos);
+            hops.record(hopCount);
+            rpcs.record(rpcCount);
+        }
+
+        void reset() {
+            finished = 0;
+            succeeded = 0;
+            latencyNanos = new LatencyHistogram();
+            hops = new LatencyHistogram();
+            rpcs = new LatencyHistogram();
+        }
+
+        /**
+         * @return the share of the finished operations that succeeded, from 0 to 1
+         */
+        public double successRate() {
+            return finished == 0 ? 0 : (double) succeeded / finished;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d done, %.2f%% succeeded, hops mean %.2f p99 %d, RPCs mean %.1f p99 %d, "
+                            + "latency p50 %.1f ms p90 %.1f ms p99 %.1f ms",
+                    name, finished, successRate() * 100, hops.mean(), hops.percentile(0.99), rpcs.mean(),
+                    rpcs.percentile(0.99), latencyNanos.percentile(0.5) / 1e6, latencyNanos.percentile(0.9) / 1e6,
+                    latencyNanos.percentile(0.99) / 1e6);
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // A simulated node: its routing table, what it knows of its peers, the keys it stores and whether it is online
+    private class Node {
+        final Host host;
+        final RoutingTable table;
+        final NodeRPC rpc = new NodeRPC(this);
+        final PeerStats peerStats = new PeerStats(maxPeers);
+
+        // Null until the node stores a key, like the scheduler deciding when to republish them
+        StorageEngine data;
+        RepublishScheduler republisher;
+
+        // Whether a republish tick is scheduled
+        boolean republishing;
+
+        boolean online;
+
+        // Where the node is in the online list while it is online
+        int onlineIndex;
+
+        Node(Host host) {
+            this.host = host;
+            this.table = flatRoutingTable
+                    ? new FlatRoutingTable(Long.SIZE, host, ksize, rpc)
+                    : new TreeRoutingTable(Long.SIZE, host, ksize, rpc);
+        }
+
+        boolean has(long key) {
+            return data != null && data.contains(key);
+        }
+
+        void store(long key) {
+            if (data == null) {
+                data = new InMemoryStorageEngine();
+                republisher = new RepublishScheduler(() -> now / 1_000_000, random);
+                republisher.setIntervalMillis(republishIntervalMillis);
+                scheduleRepublish(this);
+            }
+            data.put(key, VALUE);
+            // whoever stored it here just published it
+            republisher.published(key);
+        }
+
+        HostSearchResult findValue(long key) {
+            return has(key) ? new HostSearchResult(VALUE) : new HostSearchResult(table.getClosestHosts(key, ksize, true));
+        }
+    }
+
+    /**
+     * The RPCs of one node over the simulated network. The request and the answer each take a sampled delay and may
+     * be lost. A request reaching an offline node, or an answer reaching one, goes unanswered, and the call fails
+     * with a TimeoutException once its timeout is up. The node called learns of the caller, as it would from the
+     * request's source address. Answers and failures go into the caller's PeerStats the way MeasuredAsyncRPC records
+     * them.
+     */
+    private class NodeRPC implements AsyncKademliaRPC {
+        final Node self;
+
+        NodeRPC(Node self) {
+            this.self = self;
+        }
+
+        private <T> CompletableFuture<T> send(Host host, long timeoutMillis, Function<Node, T> handler) {
+            long sentAt = now;
+            CompletableFuture<T> answer = new CompletableFuture<>();
+            schedule(timeoutMillis * 1_000_000, () -> answer.completeExceptionally(TIMED_OUT));
+            CompletableFuture<T> measured = answer.whenComplete((result, error) -> {
+                if (error != null) {
+                    self.peerStats.failed(host);
+                } else {
+                    self.peerStats.answered(host, now - sentAt);
+                }
+            });
+            Node target = nodes.get(host.getKey());
+            if (target == null || !deliver()) {
+                return measured;
+            }
+            schedule(latency.sampleNanos(random), () -> {
+                if (!target.online) {
+                    return;
+                }
+                target.table.addHost(self.host);
+                T result = handler.apply(target);
+                if (!deliver()) {
+                    return;
+                }
+                schedule(latency.sampleNanos(random), () -> {
+                    if (self.online) {
+                        answer.complete(result);
+                    }
+                });
+            });
+            return measured;
+        }
+
+        // Counts a message sent, and decides whether it arrives
+        private boolean deliver() {
+            messagesSent++;
+            if (lossRate > 0 && random.nextDouble() < lossRate) {
+                messagesLost++;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public CompletableFuture<List<Host>> findNode(Host host, long key, boolean isNew, long timeoutMillis) {
+            return send(host, timeoutMillis, node -> {
+                List<Host> closest = node.table.getClosestHosts(key, ksize, true);
+                if (isNew && node.data != null) {
+                    List<Map.Entry<Long, DataBlock>> handoff =
+                            Replication.handoff(node.table, node.data, node.host, self.host);
+                    if (!handoff.isEmpty()) {
+                        transfer(node, self.host, handoff, handoffs);
+                    }
+                }
+                return closest;
+            });
+        }
+
+        @Override
+        public CompletableFuture<HostSearchResult> findValue(Host host, long key, long timeoutMillis) {
+            return send(host, timeoutMillis, node -> node.findValue(key));
+        }
+
+        @Override
+        public CompletableFuture<Void> store(Host host, long key, DataBlock data, long timeoutMillis) {
+            return send(host, timeoutMillis, node -> {
+                node.store(key);
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> storeBatch(Host host, Map<Long, DataBlock> entries, long timeoutMillis) {
+            return send(host, timeoutMillis, node -> {
+                entries.keySet().forEach(node::store);
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> cache(Host host, long key, DataBlock data, long timeoutMillis) {
+            return send(host, timeoutMillis, node -> null);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> ping(Host host, long timeoutMillis) {
+            return send(host, timeoutMillis, node -> true);
+        }
+    }
+
+    // A lookup sending its queries over the simulated network, on simulated time
+    private class SimulatedLookup extends IterativeLookup {
+        private final Node node;
+        private final boolean isNew;
+
+        SimulatedLookup(Node node, long key, boolean isNew, boolean findValue) {
+            super(key, findValue, node.host, ksize, node.peerStats);
+            this.node = node;
+            this.isNew = isNew;
+        }
+
+        @Override
+        protected CompletableFuture<HostSearchResult> query(Host target, long timeoutMillis) {
+            if (isFindValue()) {
+                return node.rpc.findValue(target, getKey(), timeoutMillis);
+            }
+            return node.rpc.findNode(target, getKey(), isNew, timeoutMillis).thenApply(HostSearchResult::new);
+        }
+
+        @Override
+        protected void schedule(long delayNanos, Runnable action) {
+            NetworkSimulator.this.schedule(delayNanos, action);
+        }
+
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+
+        @Override
+        protected void reached(Host host) {
+            node.table.addHost(host);
+        }
+
+        @Override
+        protected void unreachable(Host host) {
+            node.table.removeHost(host);
+        }
+    }
+
+    /**
+     * Simulates a network of the given size, 100000 by default, joining it one node per millisecond, then measures
+     * puts, gets and lookups on it without churn and with it, republishing every ten minutes. Give it a few gigabytes
+     * of heap for the largest sizes.
+     *
+     * Usage: NetworkSimulator [nodes] [seed]
+     */
+    public static void main(String[] args) {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        NetworkSimulator simulator = new NetworkSimulator(seed);
+        simulator.setLatency(LatencyModel.logNormal(40, 0.5));
+        simulator.setLossRate(0.01);
+        simulator.setRepublishIntervalMillis(10 * 60_000);
+
+        long start = System.nanoTime();
+        simulator.join(nodeCount, 1);
+        simulator.runUntilDone();
+        System.out.println(nodeCount + " nodes joined in " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                + String.format("%.1f", simulator.meanTableSize()) + " hosts per routing table");
+        System.out.println(simulator.getJoins());
+
+        simulator.resetReports();
+        simulator.put(1000, 10);
+        simulator.runUntilDone();
+        simulator.get(5000, 2);
+        simulator.lookup(5000, 2);
+        simulator.runUntilDone();
+        System.out.println("Stable network, 40 ms median latency, 1% loss:");
+        printReports(simulator);
+
+        simulator.resetReports();
+        // a tenth of the nodes offline at any time
+        simulator.startChurn(30 * 60_000, 200_000);
+        simulator.run(10 * 60_000);
+        simulator.get(5000, 2);
+        simulator.lookup(5000, 2);
+        simulator.runUntilDone();
+        System.out.println("With churn, " + simulator.onlineCount() + " of " + simulator.nodeCount() + " online, "
+                + String.format("closest node holds %.1f%% of keys:", simulator.closestHolderShare() * 100));
+        printReports(simulator);
+        System.out.println("Simulated " + simulator.getNow() / 1_000_000_000 + " s in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static void printReports(NetworkSimulator simulator) {
+        for (Report report : List.of(simulator.getJoins(), simulator.getPuts(), simulator.getGets(),
+                simulator.getLookups(), simulator.getHandoffs(), simulator.getRepublishes())) {
+            if (report.getFinished() > 0) {
+                System.out.println("  " + report);
+            }
+        }
+        System.out.printf("  %d messages, %.2f%% lost%n", simulator.getMessagesSent(),
+                100.0 * simulator.getMessagesLost() / Math.max(1, simulator.getMessagesSent()));
+    }
+}
@@ -0,0 +1,338 @@
+package edu.scu.kademlia;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of one node. Everything recorded on the hot paths, RPCs and lookups, goes into
+ * {@link LongAdder}s and {@link LatencyHistogram}s, so recording never takes a lock. The state of the routing table
+ * and the stores is read from the client when asked for.
+ *
+ * Once registered the metrics are served over JMX as one Node bean and one Rpc bean per RPC type, named
+ * edu.scu.kademlia:type=Node,node="ip:port" and edu.scu.kademlia:type=Rpc,node="ip:port",rpc=FIND_NODE.
+ */
+public class NodeMetrics implements NodeMetricsMXBean {
+    public enum Rpc {
+        FIND_NODE, FIND_VALUE, STORE, STORE_BATCH, CACHE, PING
+    }
+
+    private static final String DOMAIN = "edu.scu.kademlia";
+
+    private final KademliaClient client;
+
+    private final Host self;
+
+    private final Map<Rpc, RpcMetrics> rpcs = new EnumMap<>(Rpc.class);
+
+    private final LatencyHistogram lookupNanos = new LatencyHistogram();
+
+    // RPCs sent by each lookup
+    private final LatencyHistogram lookupRpcs = new LatencyHistogram();
+
+    // Times each lookup found a host closer to its key than any before
+    private final LatencyHistogram lookupHops = new LatencyHistogram();
+
+    private final LongAdder coalescedLookups = new LongAdder();
+
+    private final Transfer republished = new Transfer();
+
+    private final Transfer replicated = new Transfer();
+
+    // The beans registered by register(), to unregister on stop
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    // Where the last snapshot left the transfer counters, to report throughput since then
+    private long lastSnapshotNanos = System.nanoTime();
+    private long lastKeysRepublished;
+    private long lastKeysReplicated;
+
+    public NodeMetrics(KademliaClient client, Host self) {
+        this.client = client;
+        this.self = self;
+        for (Rpc rpc : Rpc.values()) {
+            rpcs.put(rpc, new RpcMetrics());
+        }
+    }
+
+    public RpcMetrics rpc(Rpc rpc) {
+        return rpcs.get(rpc);
+    }
+
+    public void lookupFinished(long nanos, int rpcsSent, int hops) {
+        lookupNanos.record(nanos);
+        lookupRpcs.record(rpcsSent);
+        lookupHops.record(hops);
+    }
+
+    public void lookupCoalesced() {
+        coalescedLookups.increment();
+    }
+
+    /**
+     * @return the counter for values sent out again by republish
+     */
+    public Transfer republished() {
+        return republished;
+    }
+
+    /**
+     * @return the counter for values handed to joining hosts
+     */
+    public Transfer replicated() {
+        return replicated;
+    }
+
+    /**
+     * Serves these metrics over the platform MBean server. Beans left behind by an earlier node with the same
+     * address are replaced.
+     */
+    public synchronized void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String node = ObjectName.quote(self.getIp() + ":" + self.getPort());
+            register(server, new ObjectName(DOMAIN + ":type=Node,node=" + node), this);
+            for (var entry : rpcs.entrySet()) {
+                register(server, new ObjectName(DOMAIN + ":type=Rpc,node=" + node + ",rpc=" + entry.getKey()),
+                        entry.getValue());
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics of " + self + ": " + e);
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        try {
+            server.registerMBean(bean, name);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(name);
+            server.registerMBean(bean, name);
+        }
+        registered.add(name);
+    }
+
+    public synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (InstanceNotFoundException e) {
+                // replaced by a later node with the same address
+            } catch (JMException e) {
+                System.err.println("Could not unregister " + name + ": " + e);
+            }
+        }
+        registered.clear();
+    }
+
+    @Override
+    public long getLookups() {
+        return lookupNanos.count();
+    }
+
+    @Override
+    public long getCoalescedLookups() {
+        return coalescedLookups.sum();
+    }
+
+    @Override
+    public long getLookupP50Micros() {
+        return micros(lookupNanos.percentile(0.5));
+    }
+
+    @Override
+    public long getLookupP99Micros() {
+        return micros(lookupNanos.percentile(0.99));
+    }
+
+    @Override
+    public double getLookupRpcsMean() {
+        return lookupRpcs.mean();
+    }
+
+    @Override
+    public long getLookupRpcsP99() {
+        return lookupRpcs.percentile(0.99);
+    }
+
+    @Override
+    public double getLookupHopsMean() {
+        return lookupHops.mean();
+    }
+
+    @Override
+    public long getLookupHopsP99() {
+        return lookupHops.percentile(0.99);
+    }
+
+    @Override
+    public long getHosts() {
+        long hosts = 0;
+        for (Bucket bucket : client.getAllBuckets()) {
+            hosts += bucket.getNodesInBucket().size();
+        }
+        return hosts;
+    }
+
+    @Override
+    public long getBuckets() {
+        long buckets = 0;
+        for (Bucket bucket : client.getAllBuckets()) {
+            if (!bucket.getNodesInBucket().isEmpty()) {
+                buckets++;
+            }
+        }
+        return buckets;
+    }
+
+    @Override
+    public double getBucketOccupancy() {
+        long buckets = getBuckets();
+        return buckets == 0 ? 0 : (double) getHosts() / (buckets * client.getRoutingTable().getKsize());
+    }
+
+    @Override
+    public long getFullBuckets() {
+        int ksize = client.getRoutingTable().getKsize();
+        long full = 0;
+        for (Bucket bucket : client.getAllBuckets()) {
+            if (bucket.getNodesInBucket().size() >= ksize) {
+                full++;
+            }
+        }
+        return full;
+    }
+
+    @Override
+    public long getReplacements() {
+        long replacements = 0;
+        for (Bucket bucket : client.getAllBuckets()) {
+            replacements += bucket.getReplacements().size();
+        }
+        return replacements;
+    }
+
+    @Override
+    public long getEvictions() {
+        return client.getRoutingTable().getEvictionCount();
+    }
+
+    @Override
+    public long getStoredKeys() {
+        return client.getDataStore().size();
+    }
+
+    @Override
+    public long getStoredBytes() {
+        return client.getDataStore().bytes();
+    }
+
+    @Override
+    public long getCachedValues() {
+        return client.getValueCache().size();
+    }
+
+    @Override
+    public long getCachedBytes() {
+        return client.getValueCache().bytes();
+    }
+
+    @Override
+    public long getKeysRepublished() {
+        return republished.keys.sum();
+    }
+
+    @Override
+    public long getBytesRepublished() {
+        return republished.bytes.sum();
+    }
+
+    @Override
+    public long getKeysReplicated() {
+        return replicated.keys.sum();
+    }
+
+    @Override
+    public long getBytesReplicated() {
+        return replicated.bytes.sum();
+    }
+
+    @Override
+    public double getTraceSampleRate() {
+        return client.getTracer().getSampleRate();
+    }
+
+    @Override
+    public void setTraceSampleRate(double sampleRate) {
+        client.getTracer().setSampleRate(sampleRate);
+    }
+
+    @Override
+    public String traces() {
+        return client.getTracer().dump();
+    }
+
+    @Override
+    public synchronized String snapshot() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastSnapshotNanos) / 1e9);
+        long keysRepublished = getKeysRepublished();
+        long keysReplicated = getKeysReplicated();
+        String republishRate = String.format("%.1f", (keysRepublished - lastKeysRepublished) / seconds);
+        String replicateRate = String.format("%.1f", (keysReplicated - lastKeysReplicated) / seconds);
+        lastSnapshotNanos = now;
+        lastKeysRepublished = keysRepublished;
+        lastKeysReplicated = keysReplicated;
+
+        StringBuilder line = new StringBuilder();
+        line.append("lookups=").append(getLookups())
+                .append(" coalesced=").append(getCoalescedLookups())
+                .append(" p50=").append(getLookupP50Micros()).append("us")
+                .append(" p99=").append(getLookupP99Micros()).append("us")
+                .append(String.format(" rpcs/lookup=%.1f hops/lookup=%.1f", getLookupRpcsMean(), getLookupHopsMean()));
+        for (var entry : rpcs.entrySet()) {
+            if (entry.getValue().getCalls() > 0) {
+                line.append(" | ").append(entry.getKey()).append(' ').append(entry.getValue());
+            }
+        }
+        line.append(" | hosts=").append(getHosts())
+                .append(" buckets=").append(getBuckets())
+                .append(String.format(" occupancy=%.2f", getBucketOccupancy()))
+                .append(" replacements=").append(getReplacements())
+                .append(" evictions=").append(getEvictions())
+                .append(" | stored=").append(getStoredKeys()).append(" keys/").append(getStoredBytes()).append("B")
+                .append(" cached=").append(getCachedValues()).append(" values/").append(getCachedBytes()).append("B")
+                .append(" | republished=").append(keysRepublished).append(" keys (").append(republishRate).append("/s)")
+                .append(" replicated=").append(keysReplicated).append(" keys (").append(replicateRate).append("/s)");
+        return line.toString();
+    }
+
+    private static long micros(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000;
+    }
+
+    /**
+     * Counts values sent to other hosts
+     */
+    public static class Transfer {
+        private final LongAdder keys = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        public void sent(Map<Long, DataBlock> values) {
+            keys.add(values.size());
+            long total = 0;
+            for (DataBlock data : values.values()) {
+                total += data.size();
+            }
+            bytes.add(total);
+        }
+    }
+}
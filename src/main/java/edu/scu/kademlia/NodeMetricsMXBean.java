@@ -0,0 +1,77 @@
+package edu.scu.kademlia;
+
+/**
+ * The JMX view of a node. Counters run from the start of the node; the RPCs have a bean each, see
+ * {@link RpcMetricsMXBean}.
+ */
+public interface NodeMetricsMXBean {
+    long getLookups();
+
+    /**
+     * @return lookups that waited for a lookup of the same key instead of sending RPCs of their own
+     */
+    long getCoalescedLookups();
+
+    long getLookupP50Micros();
+
+    long getLookupP99Micros();
+
+    double getLookupRpcsMean();
+
+    long getLookupRpcsP99();
+
+    /**
+     * @return how many times, on average, a lookup got closer to its key before it ended
+     */
+    double getLookupHopsMean();
+
+    long getLookupHopsP99();
+
+    long getHosts();
+
+    long getBuckets();
+
+    /**
+     * @return the share of the room in the non-empty buckets taken by hosts
+     */
+    double getBucketOccupancy();
+
+    long getFullBuckets();
+
+    long getReplacements();
+
+    long getEvictions();
+
+    long getStoredKeys();
+
+    long getStoredBytes();
+
+    long getCachedValues();
+
+    long getCachedBytes();
+
+    long getKeysRepublished();
+
+    long getBytesRepublished();
+
+    long getKeysReplicated();
+
+    long getBytesReplicated();
+
+    /**
+     * @return the share of lookups traced, see {@link LookupTracer}
+     */
+    double getTraceSampleRate();
+
+    void setTraceSampleRate(double sampleRate);
+
+    /**
+     * @return the traced lookups still in the tracer's buffer
+     */
+    String traces();
+
+    /**
+     * @return a one line summary of every metric, with republish and replication throughput since the last call
+     */
+    String snapshot();
+}
@@ -0,0 +1,127 @@
+package edu.scu.kademlia;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from long to long kept in direct memory, so that an index over millions of keys puts
+ * nothing on the heap but this object. A value of 0 marks an empty slot, so 0 cannot be stored. Not thread safe.
+ */
+final class OffHeapLongMap {
+    private static final double MAX_LOAD = 0.7;
+
+    // Pairs of key and value, one pair per slot
+    private LongBuffer slots;
+
+    // log2 of the number of slots
+    private int bits;
+
+    private int size;
+
+    OffHeapLongMap(int expectedSize) {
+        int wanted = Math.max(16, (int) (expectedSize / MAX_LOAD) + 1);
+        allocate(32 - Integer.numberOfLeadingZeros(wanted - 1));
+    }
+
+    private void allocate(int bits) {
+        long bytes = (2L * Long.BYTES) << bits;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Index cannot grow past " + size + " keys");
+        }
+        this.bits = bits;
+        this.slots = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    private int slotOf(long key) {
+        // Fibonacci hashing spreads keys that only differ in their high bits
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - bits));
+    }
+
+    /**
+     * @return the value stored under the key, or 0 if there is none
+     */
+    long get(long key) {
+        int mask = (1 << bits) - 1;
+        for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+            long value = slots.get(2 * slot + 1);
+            if (value == 0) {
+                return 0;
+            }
+            if (slots.get(2 * slot) == key) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * @return the value previously stored under the key, or 0 if there was none
+     */
+    long put(long key, long value) {
+        if (value == 0) {
+            throw new IllegalArgumentException("0 marks an empty slot and cannot be stored");
+        }
+        if (size + 1 > (1 << bits) * MAX_LOAD) {
+            grow();
+        }
+        int mask = (1 << bits) - 1;
+        for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+            long previous = slots.get(2 * slot + 1);
+            if (previous == 0) {
+                slots.put(2 * slot, key);
+                slots.put(2 * slot + 1, value);
+                size++;
+                return 0;
+            }
+            if (slots.get(2 * slot) == key) {
+                slots.put(2 * slot + 1, value);
+                return previous;
+            }
+        }
+    }
+
+    private void grow() {
+        LongBuffer old = slots;
+        int oldSlots = 1 << bits;
+        allocate(bits + 1);
+        size = 0;
+        for (int slot = 0; slot < oldSlots; slot++) {
+            long value = old.get(2 * slot + 1);
+            if (value != 0) {
+                put(old.get(2 * slot), value);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return every stored key, in no particular order
+     */
+    long[] keys() {
+        return keysInRange(0, -1);
+    }
+
+    /**
+     * @return the stored keys between from and to, both included and compared as unsigned values, in no particular
+     * order
+     */
+    long[] keysInRange(long from, long to) {
+        long[] keys = new long[16];
+        int found = 0;
+        for (int slot = 0, slotCount = 1 << bits; slot < slotCount; slot++) {
+            long key = slots.get(2 * slot);
+            if (slots.get(2 * slot + 1) != 0
+                    && Long.compareUnsigned(key, from) >= 0 && Long.compareUnsigned(key, to) <= 0) {
+                if (found == keys.length) {
+                    keys = Arrays.copyOf(keys, Math.min(size, 2 * found));
+                }
+                keys[found++] = key;
+            }
+        }
+        return Arrays.copyOf(keys, found);
+    }
+}
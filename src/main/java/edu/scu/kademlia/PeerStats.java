@@ -0,0 +1,177 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What this node has learned about each peer from talking to it: when it last answered, and how long it takes to
+ * answer. Peers are tracked by key, since the same peer shows up as many Host objects.
+ *
+ * Round trip times are smoothed the way TCP does it (RFC 6298): srtt follows each sample by 1/8 and rttvar tracks
+ * the mean deviation from it by 1/4. From those come a per-peer retransmission timeout, srtt + 4 * rttvar, and a
+ * rough 95th percentile, srtt + 2 * rttvar. Every sample also goes into a histogram shared by all peers, which
+ * gives the percentile for peers that have not answered yet.
+ */
+public class PeerStats {
+    // Default number of peers to remember. Beyond it, the least recently seen peer is forgotten.
+    public static final int DEFAULT_MAX_PEERS = 10_000;
+
+    private final Map<Long, Peer> peers = new ConcurrentHashMap<>();
+
+    // Counts up on every answer and every new peer, so that peers can be ordered by when they were last seen
+    private final AtomicLong clock = new AtomicLong();
+
+    // Round trip times of every peer
+    @Getter
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private final int maxPeers;
+
+    public PeerStats() {
+        this(DEFAULT_MAX_PEERS);
+    }
+
+    public PeerStats(int maxPeers) {
+        this.maxPeers = maxPeers;
+    }
+
+    /**
+     * Records an answer from a host that took rttNanos to arrive.
+     */
+    public void answered(Host host, long rttNanos) {
+        long now = System.currentTimeMillis();
+        host.setMostRecentSeen(now);
+        Peer peer = peers.computeIfAbsent(host.getKey(), key -> new Peer(clock.incrementAndGet()));
+        peer.sample(rttNanos, now, clock.incrementAndGet());
+        histogram.record(Math.max(1, rttNanos));
+        if (peers.size() > maxPeers) {
+            evict();
+        }
+    }
+
+    // Forgets the least recently seen peers until there are maxPeers left. The scan is linear, but it only runs once
+    // a new peer pushes the count over, and one thread at a time.
+    private synchronized void evict() {
+        while (peers.size() > maxPeers) {
+            Map.Entry<Long, Peer> oldest = null;
+            for (var entry : peers.entrySet()) {
+                if (oldest == null || entry.getValue().seenAt < oldest.getValue().seenAt) {
+                    oldest = entry;
+                }
+            }
+            peers.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * Records a request to a host that went unanswered. A peer that is not tracked yet is from now on, so that its
+     * failures add up.
+     */
+    public void failed(Host host) {
+        peers.computeIfAbsent(host.getKey(), key -> new Peer(clock.incrementAndGet())).failed();
+        if (peers.size() > maxPeers) {
+            evict();
+        }
+    }
+
+    /**
+     * @return whether a peer has failed at least count requests in a row since it last answered or was first
+     * tracked. A peer that is not tracked, such as one forgotten to make room for others, has not.
+     */
+    public boolean failedInARow(long key, int count) {
+        Peer peer = peers.get(key);
+        return peer != null && peer.getConsecutiveFailures() >= count;
+    }
+
+    /**
+     * @return what is known about a peer, or null if it is not tracked
+     */
+    public Peer get(long key) {
+        return peers.get(key);
+    }
+
+    // The record of a peer that answered at least once, or null
+    private Peer sampled(long key) {
+        Peer peer = peers.get(key);
+        return peer == null || peer.getLastAnsweredMillis() == 0 ? null : peer;
+    }
+
+    /**
+     * @return the smoothed round trip time to a peer in nanoseconds, or -1 if it never answered
+     */
+    public long srttNanos(long key) {
+        Peer peer = sampled(key);
+        return peer == null ? -1 : peer.getSrttNanos();
+    }
+
+    /**
+     * @return how long to wait for an answer from a peer: srtt + 4 * rttvar, kept between min and max. Peers that
+     * never answered get max.
+     */
+    public long timeoutMillis(long key, long minMillis, long maxMillis) {
+        Peer peer = sampled(key);
+        if (peer == null) {
+            return maxMillis;
+        }
+        long rto = (peer.getSrttNanos() + 4 * peer.getRttvarNanos()) / 1_000_000;
+        return Math.max(minMillis, Math.min(maxMillis, rto));
+    }
+
+    /**
+     * @return the time within which a peer answers about 95% of the time, srtt + 2 * rttvar, or the 95th percentile
+     * over all peers if it never answered, or -1 if no peer has
+     */
+    public long p95Nanos(long key) {
+        Peer peer = sampled(key);
+        if (peer != null) {
+            return peer.getSrttNanos() + 2 * peer.getRttvarNanos();
+        }
+        return percentileNanos(0.95);
+    }
+
+    /**
+     * @return the round trip time below which the given share of all samples fall, overstated by at most a quarter,
+     * or -1 if there are none
+     */
+    public long percentileNanos(double quantile) {
+        return histogram.percentile(quantile);
+    }
+
+    // One peer's record. Samples are folded in under the peer's lock; the fields are read without it.
+    @Getter
+    public static class Peer {
+        private volatile long srttNanos;
+        private volatile long rttvarNanos;
+        private volatile long lastAnsweredMillis;
+
+        // Requests that went unanswered since the last answer
+        private volatile int consecutiveFailures;
+
+        // The clock of PeerStats when the peer last answered, or was first tracked
+        private volatile long seenAt;
+
+        Peer(long seenAt) {
+            this.seenAt = seenAt;
+        }
+
+        synchronized void sample(long rttNanos, long now, long seenAt) {
+            if (lastAnsweredMillis == 0) {
+                srttNanos = rttNanos;
+                rttvarNanos = rttNanos / 2;
+            } else {
+                rttvarNanos += (Math.abs(srttNanos - rttNanos) - rttvarNanos) / 4;
+                srttNanos += (rttNanos - srttNanos) / 8;
+            }
+            lastAnsweredMillis = now;
+            consecutiveFailures = 0;
+            this.seenAt = seenAt;
+        }
+
+        synchronized void failed() {
+            consecutiveFailures++;
+        }
+    }
+}
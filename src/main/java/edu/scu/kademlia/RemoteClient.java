@@ -1,6 +1,30 @@
 package edu.scu.kademlia;
 
 import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * The RPCs of {@link Client} as a remote interface. The methods are declared again here because RMI only invokes
+ * methods declared by an interface that extends Remote, and Client does not.
+ */
 public interface RemoteClient extends Remote, Client {
+    @Override
+    List<Host> findNode(long key) throws RemoteException;
+
+    @Override
+    HostSearchResult findValue(long key) throws RemoteException;
+
+    @Override
+    void store(long key, DataBlock data) throws RemoteException;
+
+    @Override
+    void storeBatch(Map<Long, DataBlock> entries) throws RemoteException;
+
+    @Override
+    void cache(long key, DataBlock data) throws RemoteException;
+
+    @Override
+    boolean ping() throws RemoteException;
 }
@@ -2,6 +2,7 @@ package edu.scu.kademlia;
 
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Map;
 
 public class RemoteClientImpl implements RemoteClient {
     private final Client handler;
@@ -11,25 +12,31 @@ public class RemoteClientImpl implements RemoteClient {
 
     @Override
     public List<Host> findNode(long key) throws RemoteException {
-        System.out.println("Received remote findNode");
         return this.handler.findNode(key);
     }
 
     @Override
     public HostSearchResult findValue(long key) throws RemoteException {
-        System.out.println("Received remote findValue");
         return this.handler.findValue(key);
     }
 
     @Override
     public void store(long key, DataBlock data) throws RemoteException {
-        System.out.println("Received remote store");
         this.handler.store(key, data);
     }
 
+    @Override
+    public void storeBatch(Map<Long, DataBlock> entries) throws RemoteException {
+        this.handler.storeBatch(entries);
+    }
+
+    @Override
+    public void cache(long key, DataBlock data) throws RemoteException {
+        this.handler.cache(key, data);
+    }
+
     @Override
     public boolean ping() throws RemoteException {
-        System.out.println("Received remote ping");
         return this.handler.ping();
     }
 }
@@ -0,0 +1,101 @@
+package edu.scu.kademlia;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which values a node sends where to keep k copies of each: the values a joining host takes over, the hosts
+ * a due key is republished to, and how the values bound for one host are split into storeBatch RPCs.
+ * {@link KademliaClient} sends what these return over its RPCs and {@link NetworkSimulator} over its simulated
+ * network, so both replicate the same way.
+ */
+public final class Replication {
+
+    private Replication() {
+    }
+
+    /**
+     * Finds the values a joining host is now one of the k closest hosts for and that self is the closest other
+     * holder of.
+     *
+     * Let h be the k-th closest host to the newcomer N that self knows of, other than N. Every key sharing more
+     * leading bits with N than h does is closer to N than to any host outside that subtree, and at most k - 1 hosts
+     * are inside it, so N is one of the k closest for all of them. The subtree is a contiguous range of keys, so only
+     * that range of the store is scanned.
+     */
+    public static List<Map.Entry<Long, DataBlock>> handoff(RoutingTable table, StorageEngine store, Host self,
+                                                           Host newcomer) {
+        int ksize = table.getKsize();
+        long from = 0;
+        long to = -1;
+        List<Host> neighbours = table.getClosestHosts(newcomer.getKey(), ksize + 1, true);
+        neighbours.remove(newcomer);
+        if (neighbours.size() >= ksize) {
+            long kthDistance = neighbours.get(ksize - 1).getKey() ^ newcomer.getKey();
+            long prefix = -1L << (Long.SIZE - Long.numberOfLeadingZeros(kthDistance) - 1);
+            from = newcomer.getKey() & prefix;
+            to = from | ~prefix;
+        }
+
+        List<Map.Entry<Long, DataBlock>> handoff = new ArrayList<>();
+        store.forEachInRange(from, to, (key, data) -> {
+            Host closest = table.getClosestHosts(key, 2, true)
+                    .stream()
+                    .filter(host -> !host.equals(newcomer))
+                    .findFirst()
+                    .get();
+
+            if (closest.equals(self)) {
+                handoff.add(Map.entry(key, data));
+            }
+        });
+        return handoff;
+    }
+
+    /**
+     * Takes the keys the scheduler says are due, as many as its rate limit allows, and marks them published. A host
+     * that cannot be reached now is tried again next interval.
+     *
+     * @return the values due, by each of the k hosts closest to them in the routing table
+     */
+    public static Map<Host, List<Map.Entry<Long, DataBlock>>> republish(RoutingTable table, StorageEngine store,
+                                                                        RepublishScheduler scheduler) {
+        Map<Host, List<Map.Entry<Long, DataBlock>>> byHost = new HashMap<>();
+        for (long key : scheduler.pollDue()) {
+            DataBlock data = store.get(key);
+            if (data != null) {
+                for (Host host : table.getClosestHosts(key, table.getKsize(), false)) {
+                    byHost.computeIfAbsent(host, ignored -> new ArrayList<>()).add(Map.entry(key, data));
+                }
+            }
+            scheduler.published(key);
+        }
+        return byHost;
+    }
+
+    /**
+     * Splits values into as few batches of at most maxBatchBytes as their order allows. A value larger than that
+     * gets a batch of its own.
+     */
+    public static List<Map<Long, DataBlock>> batches(List<Map.Entry<Long, DataBlock>> entries, int maxBatchBytes) {
+        List<Map<Long, DataBlock>> batches = new ArrayList<>();
+        Map<Long, DataBlock> batch = new HashMap<>();
+        int batchBytes = 0;
+        for (var entry : entries) {
+            int entryBytes = Long.BYTES + entry.getValue().encodedSize();
+            if (!batch.isEmpty() && batchBytes + entryBytes > maxBatchBytes) {
+                batches.add(batch);
+                batch = new HashMap<>();
+                batchBytes = 0;
+            }
+            batch.put(entry.getKey(), entry.getValue());
+            batchBytes += entryBytes;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,158 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when each key is due to be republished. Every key gets its own deadline, about intervalMillis after it was
+ * last published, give or take a random jitter so keys stored together drift apart. Due keys are handed out no
+ * faster than keysPerSecond, so the republish load stays flat however many keys the node holds.
+ *
+ * Deadlines live in a priority queue. Rescheduling a key leaves its old entry in the queue; entries that no longer
+ * match the key's current deadline are skipped when they come up.
+ *
+ * Time comes from a clock in milliseconds, the wall clock unless another is given, so that a simulation can run the
+ * scheduler on its own time.
+ */
+public class RepublishScheduler {
+    // Default time between two publications of a key. Kademlia republishes once an hour.
+    public static final long DEFAULT_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    // Default share of the interval a deadline may move either way
+    public static final double DEFAULT_JITTER = 0.1;
+
+    // Default number of keys handed out per second
+    public static final int DEFAULT_KEYS_PER_SECOND = 1000;
+
+    @Getter @Setter
+    private volatile long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+    @Getter @Setter
+    private volatile double jitter = DEFAULT_JITTER;
+
+    @Getter @Setter
+    private volatile int keysPerSecond = DEFAULT_KEYS_PER_SECOND;
+
+    // key -> when it is next due
+    private final Map<Long, Long> deadlines = new HashMap<>();
+
+    // Deadlines in order. May hold entries for deadlines that were moved since.
+    private final PriorityQueue<Deadline> queue = new PriorityQueue<>();
+
+    // Keys that may be handed out before the rate limit holds the rest back
+    private double tokens = DEFAULT_KEYS_PER_SECOND;
+
+    private final LongSupplier clockMillis;
+
+    // Draws the jitter, or null to use the calling thread's ThreadLocalRandom
+    private final Random random;
+
+    private long lastRefill;
+
+    public RepublishScheduler() {
+        this(System::currentTimeMillis, null);
+    }
+
+    public RepublishScheduler(LongSupplier clockMillis, Random random) {
+        this.clockMillis = clockMillis;
+        this.random = random;
+        this.lastRefill = clockMillis.getAsLong();
+    }
+
+    /**
+     * Makes a key due one interval from now, plus or minus the jitter. Call whenever the key was published.
+     */
+    public synchronized void published(long key) {
+        long interval = intervalMillis;
+        long spread = (long) (interval * jitter);
+        long offset = spread > 0 ? nextLong(spread * 2 + 1) - spread : 0;
+        schedule(key, clockMillis.getAsLong() + interval + offset);
+    }
+
+    /**
+     * Makes a key due at a random time within the next interval, so that keys found at startup do not all come due
+     * at once.
+     */
+    public synchronized void spread(long key) {
+        long interval = intervalMillis;
+        long offset = interval > 0 ? nextLong(interval) : 0;
+        schedule(key, clockMillis.getAsLong() + offset);
+    }
+
+    // A random value from 0 up to bound, bound excluded
+    private long nextLong(long bound) {
+        if (random == null) {
+            return ThreadLocalRandom.current().nextLong(bound);
+        }
+        return (long) (random.nextDouble() * bound);
+    }
+
+    private void schedule(long key, long deadline) {
+        deadlines.put(key, deadline);
+        queue.add(new Deadline(key, deadline));
+        if (queue.size() > 2 * deadlines.size() + 1024) {
+            // drop the moved entries that pile up when keys are stored over and over
+            queue.clear();
+            for (var entry : deadlines.entrySet()) {
+                queue.add(new Deadline(entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Hands out the keys that are due, as many as the rate limit allows. The keys stay scheduled; call
+     * {@link #published(long)} once each is sent.
+     */
+    public synchronized List<Long> pollDue() {
+        long now = clockMillis.getAsLong();
+        int rate = keysPerSecond;
+        tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1000.0);
+        lastRefill = now;
+
+        List<Long> due = new ArrayList<>();
+        while (tokens >= 1 && !queue.isEmpty() && queue.peek().deadline <= now) {
+            Deadline next = queue.poll();
+            Long current = deadlines.get(next.key);
+            if (current == null || current != next.deadline) {
+                // moved since this entry was queued
+                continue;
+            }
+            // keep the key from being handed out again before it is published
+            deadlines.put(next.key, Long.MAX_VALUE);
+            due.add(next.key);
+            tokens--;
+        }
+        return due;
+    }
+
+    /**
+     * @return the number of keys scheduled
+     */
+    public synchronized int size() {
+        return deadlines.size();
+    }
+
+    private static class Deadline implements Comparable<Deadline> {
+        final long key;
+        final long deadline;
+
+        Deadline(long key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+}
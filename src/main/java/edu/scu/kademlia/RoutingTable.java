@@ -0,0 +1,52 @@
+package edu.scu.kademlia;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The address book of a node: the k-buckets that hold the hosts it knows about.
+ */
+public interface RoutingTable {
+
+    /**
+     * Adds a host, or marks it as recently seen if it is already known
+     *
+     * @param host the host to add
+     */
+    void addHost(Host host);
+
+    void removeHost(Host host);
+
+    /**
+     * @param key the key to look up
+     * @return the bucket a host with this key belongs in
+     */
+    Bucket getClosestBucket(long key);
+
+    /**
+     * @param key       the key to measure distance from
+     * @param count     the maximum number of hosts to return
+     * @param matchSelf whether this host may be part of the result
+     * @return up to count hosts, closest first
+     */
+    List<Host> getClosestHosts(long key, int count, boolean matchSelf);
+
+    List<Host> allHosts();
+
+    Collection<Bucket> getAllBuckets();
+
+    /**
+     * @return a random key that belongs in the given bucket, used to look up the part of the key space it covers
+     */
+    long randomKeyIn(Bucket bucket);
+
+    /**
+     * @return the number of hosts the buckets have dropped for not answering a ping
+     */
+    long getEvictionCount();
+
+    /**
+     * @return the size of each bucket
+     */
+    int getKsize();
+}
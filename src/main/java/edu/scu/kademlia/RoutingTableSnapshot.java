@@ -0,0 +1,106 @@
+package edu.scu.kademlia;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Saves the hosts of a routing table to a small binary file so a restarted node can route right away instead of
+ * rebuilding its table from the introducer.
+ *
+ * <pre>
+ * snapshot: magic(4) version(1) count(4) then count * host
+ * host:     key(8) port(4) mostRecentSeen(8) ipLength(1) ip(ipLength)
+ * </pre>
+ *
+ * A snapshot is written to a temporary file and moved over the old one, so a crash mid-write leaves the previous
+ * snapshot in place.
+ */
+public final class RoutingTableSnapshot {
+    private static final int MAGIC = 0x4B525453;
+    private static final byte VERSION = 1;
+
+    private RoutingTableSnapshot() {
+    }
+
+    public static void save(Path file, Collection<Host> hosts) throws IOException {
+        int size = Integer.BYTES + 1 + Integer.BYTES;
+        List<byte[]> ips = new ArrayList<>(hosts.size());
+        for (Host host : hosts) {
+            byte[] ip = host.getIp().getBytes(StandardCharsets.UTF_8);
+            ips.add(ip);
+            size += Long.BYTES + Integer.BYTES + Long.BYTES + 1 + ip.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.putInt(hosts.size());
+        int i = 0;
+        for (Host host : hosts) {
+            byte[] ip = ips.get(i++);
+            buffer.putLong(host.getKey());
+            buffer.putInt(host.getPort());
+            buffer.putLong(host.getMostRecentSeen());
+            buffer.put((byte) ip.length);
+            buffer.put(ip);
+        }
+        buffer.flip();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the hosts in the snapshot, or an empty list if there is no snapshot or it cannot be read
+     */
+    public static List<Host> load(Path file) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        } catch (NoSuchFileException e) {
+            return List.of();
+        }
+
+        if (buffer.remaining() < Integer.BYTES + 1 + Integer.BYTES
+                || buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            System.err.println("Ignoring unreadable routing table snapshot " + file);
+            return List.of();
+        }
+
+        int count = buffer.getInt();
+        List<Host> hosts = new ArrayList<>(Math.max(0, Math.min(count, 1 << 16)));
+        try {
+            for (int i = 0; i < count; i++) {
+                long key = buffer.getLong();
+                int port = buffer.getInt();
+                long mostRecentSeen = buffer.getLong();
+                byte[] ip = new byte[buffer.get() & 0xFF];
+                buffer.get(ip);
+                Host host = new Host(new String(ip, StandardCharsets.UTF_8), key, port);
+                host.setMostRecentSeen(mostRecentSeen);
+                hosts.add(host);
+            }
+        } catch (BufferUnderflowException e) {
+            System.err.println("Routing table snapshot " + file + " is truncated, keeping " + hosts.size() + " hosts");
+        }
+        return hosts;
+    }
+}
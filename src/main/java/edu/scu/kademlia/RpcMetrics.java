@@ -0,0 +1,66 @@
+package edu.scu.kademlia;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcomes and latencies of one type of outgoing RPC
+ */
+public class RpcMetrics implements RpcMetricsMXBean {
+    private final LatencyHistogram latencyNanos = new LatencyHistogram();
+
+    private final LongAdder errors = new LongAdder();
+
+    public void answered(long nanos) {
+        latencyNanos.record(nanos);
+    }
+
+    public void failed() {
+        errors.increment();
+    }
+
+    @Override
+    public long getCalls() {
+        return latencyNanos.count() + errors.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getErrorRate() {
+        long calls = getCalls();
+        return calls == 0 ? 0 : (double) errors.sum() / calls;
+    }
+
+    @Override
+    public double getLatencyMeanMicros() {
+        return latencyNanos.mean() / 1000;
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return micros(latencyNanos.percentile(0.5));
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return micros(latencyNanos.percentile(0.99));
+    }
+
+    @Override
+    public long getLatencyMaxMicros() {
+        return latencyNanos.max() / 1000;
+    }
+
+    private static long micros(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "calls=" + getCalls() + " errors=" + getErrors() + " p50=" + getLatencyP50Micros() + "us p99="
+                + getLatencyP99Micros() + "us";
+    }
+}
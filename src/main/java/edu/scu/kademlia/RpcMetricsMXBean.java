@@ -0,0 +1,23 @@
+package edu.scu.kademlia;
+
+/**
+ * The JMX view of one type of outgoing RPC. Latencies are in microseconds and cover answered calls only.
+ */
+public interface RpcMetricsMXBean {
+    long getCalls();
+
+    long getErrors();
+
+    /**
+     * @return the share of calls that failed or timed out
+     */
+    double getErrorRate();
+
+    double getLatencyMeanMicros();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyMaxMicros();
+}
@@ -0,0 +1,147 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * The candidate set of an iterative lookup. Holds at most k hosts, ordered by XOR distance to the target key, and
+ * remembers which of them have been queried so the lookup knows when it has converged.
+ *
+ * Given round trip times, the next host to query is the fastest of the unqueried candidates that are as close as the
+ * closest one, where hosts count as equally close when their distance has the same highest bit, the way they
+ * would share a k-bucket. A lookup still waits for all k closest hosts, but asking fast ones first lets it learn
+ * the closer hosts sooner.
+ */
+public class Shortlist {
+    @Getter
+    private final long key;
+
+    // The size of the shortlist
+    private final int ksize;
+
+    // The host running the lookup. It never queries itself, so it is never a candidate.
+    private final Host self;
+
+    // The k closest hosts seen so far, closest first
+    private final TreeSet<Host> candidates;
+
+    // Hosts that have been sent a query, whether or not they answered yet
+    private final Set<Host> contacted = new HashSet<>();
+
+    // Hosts that answered their query
+    private final Set<Host> responded = new HashSet<>();
+
+    // Hosts that could not be reached. They are never added back.
+    private final Set<Host> failed = new HashSet<>();
+
+    // Round trip times used to choose among equally close hosts, or null to go by distance alone
+    private final PeerStats peerStats;
+
+    public Shortlist(long key, int ksize, Host self) {
+        this(key, ksize, self, null);
+    }
+
+    public Shortlist(long key, int ksize, Host self, PeerStats peerStats) {
+        this.key = key;
+        this.ksize = ksize;
+        this.self = self;
+        this.peerStats = peerStats;
+        this.candidates = new TreeSet<>(KademliaClient.distanceComparator(key));
+    }
+
+    /**
+     * Offers a host to the shortlist. The host is kept only if it is one of the k closest seen so far.
+     *
+     * @param host the host to add
+     * @return true if the host is now in the shortlist
+     */
+    public boolean add(Host host) {
+        if (host.equals(self) || failed.contains(host) || candidates.contains(host)) {
+            return false;
+        }
+        candidates.add(host);
+        if (candidates.size() > ksize) {
+            Host farthest = candidates.pollLast();
+            return !farthest.equals(host);
+        }
+        return true;
+    }
+
+    public void addAll(Collection<Host> hosts) {
+        for (Host host : hosts) {
+            add(host);
+        }
+    }
+
+    /**
+     * @return the host in the shortlist to query next, or null if every candidate has been
+     */
+    public Host nextToQuery() {
+        Host best = null;
+        long bestRtt = 0;
+        for (Host host : candidates) {
+            if (contacted.contains(host)) {
+                continue;
+            }
+            if (best == null) {
+                if (peerStats == null) {
+                    return host;
+                }
+                best = host;
+                bestRtt = rttOf(host);
+            } else if (distanceBand(host) != distanceBand(best)) {
+                break;
+            } else if (rttOf(host) < bestRtt) {
+                best = host;
+                bestRtt = rttOf(host);
+            }
+        }
+        return best;
+    }
+
+    // Equal for hosts whose distance to the key has the same highest bit
+    private int distanceBand(Host host) {
+        return Long.numberOfLeadingZeros(host.getKey() ^ key);
+    }
+
+    // Hosts that never answered go after the ones with a known time
+    private long rttOf(Host host) {
+        long rtt = peerStats.srttNanos(host.getKey());
+        return rtt < 0 ? Long.MAX_VALUE : rtt;
+    }
+
+    public void markContacted(Host host) {
+        contacted.add(host);
+    }
+
+    public void markResponded(Host host) {
+        contacted.add(host);
+        responded.add(host);
+    }
+
+    public void markFailed(Host host) {
+        failed.add(host);
+        candidates.remove(host);
+    }
+
+    /**
+     * @return the closest host seen so far, or null if the shortlist is empty
+     */
+    public Host closest() {
+        return candidates.isEmpty() ? null : candidates.first();
+    }
+
+    /**
+     * @return the candidates that answered, closest first
+     */
+    public List<Host> respondedHosts() {
+        List<Host> result = new ArrayList<>(candidates.size());
+        for (Host host : candidates) {
+            if (responded.contains(host)) {
+                result.add(host);
+            }
+        }
+        return result;
+    }
+}
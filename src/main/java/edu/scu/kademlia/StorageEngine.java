@@ -0,0 +1,48 @@
+package edu.scu.kademlia;
+
+import java.io.Closeable;
+
+/**
+ * Where a node keeps the values it is responsible for.
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     * Stores a value, replacing any earlier value for the same key
+     */
+    void put(long key, DataBlock data);
+
+    /**
+     * @return the value stored under the key, or null if there is none
+     */
+    DataBlock get(long key);
+
+    boolean contains(long key);
+
+    /**
+     * @return the number of keys stored
+     */
+    long size();
+
+    /**
+     * @return the bytes the stored values take up, counting whatever framing the engine adds to each
+     */
+    long bytes();
+
+    /**
+     * Calls the visitor once for every stored key. Values stored while this runs may or may not be visited.
+     */
+    void forEach(EntryVisitor visitor);
+
+    /**
+     * Calls the visitor once for every stored key between from and to, both included, comparing keys as unsigned
+     * values. Keys sharing a prefix form such a range, so this is how the keys of one subtree of the key space are
+     * found without looking at the rest.
+     */
+    void forEachInRange(long from, long to, EntryVisitor visitor);
+
+    @FunctionalInterface
+    interface EntryVisitor {
+        void visit(long key, DataBlock data);
+    }
+}
@@ -0,0 +1,280 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The original routing table: a binary tree over the bits of the key whose leaves hold the k-buckets. The leaf that
+ * holds this host splits in two whenever it fills up.
+ *
+ * Safe for concurrent use. Lookups walk the tree without locking. A split fills the two new buckets, links them in
+ * and only then detaches the old bucket, so a reader sees either the old leaf or the finished children. Splits are
+ * serialized on the table, and the old bucket is retired first so that no host added to it concurrently is lost.
+ */
+public class TreeRoutingTable implements RoutingTable {
+
+    // The bits of the key to use
+    private final int bitLen;
+
+    // The root of our route tree. Each node contains a kbucket.
+    private final RouteNode kbucketTree;
+
+    // The hosts in our address book. Points to hosts in the kbucket tree
+    @Getter
+    private final Set<Bucket> allBuckets = ConcurrentHashMap.newKeySet();
+
+    // Our host information
+    private final Host self;
+
+    // Used by the buckets to check on their hosts
+    private final AsyncKademliaRPC rpc;
+
+    // Hosts dropped by any of the buckets for not answering a ping
+    private final LongAdder evictions = new LongAdder();
+
+    // The size of each bucket
+    @Getter
+    private final int ksize;
+
+    public TreeRoutingTable(int bitLen, Host self, int ksize, KademliaRPC rpc) {
+        this(bitLen, self, ksize, new BlockingAsyncRPC(rpc));
+    }
+
+    /**
+     * @param rpc used by the buckets to ping their hosts, such as the simulated network of {@link NetworkSimulator}
+     */
+    public TreeRoutingTable(int bitLen, Host self, int ksize, AsyncKademliaRPC rpc) {
+        this.bitLen = bitLen;
+        this.self = self;
+        this.ksize = ksize;
+        this.rpc = rpc;
+
+        kbucketTree = new RouteNode(0);
+        Bucket baseBucket = new Bucket(ksize, this.rpc, evictions);
+        kbucketTree.setKbucket(baseBucket);
+        allBuckets.add(baseBucket);
+        addHost(self);
+    }
+
+    @Override
+    public void removeHost(Host host) {
+        while (true) {
+            Bucket kbucket = getClosestBucket(host.getKey());
+            kbucket.removeHost(host);
+            // a split may have copied the host into a new bucket before we removed it
+            if (!kbucket.isRetired()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * adds a host to the route tree
+     *
+     * @param host the host to add
+     */
+    @Override
+    public void addHost(Host host) {
+        while (true) {
+            RouteNode targetNode = getClosestNode(host.getKey());
+            Optional<Bucket> leaf = targetNode.getKbucket();
+            if (!leaf.isPresent()) {
+                // split under us, walk again
+                continue;
+            }
+            Bucket kbucket = leaf.get();
+            boolean inOwnBucket = kbucket.contains(self);
+            boolean success = kbucket.addHost(host);
+
+            // if we failed to insert and the bucket contains this node
+            if (success) {
+                return;
+            }
+
+            if (kbucket.isRetired()) {
+                continue;
+            }
+
+            if (!inOwnBucket || targetNode.getDepth() >= bitLen) {
+                return;
+            }
+
+            splitNode(targetNode, kbucket);
+        }
+    }
+
+    private synchronized void splitNode(RouteNode node, Bucket oldBucket) {
+        if (node.getKbucket().orElse(null) != oldBucket) {
+            // another thread split it first
+            return;
+        }
+
+        RouteNode left = new RouteNode(node.getDepth() + 1);
+        Bucket leftBucket = new Bucket(ksize, rpc, evictions);
+        left.setKbucket(leftBucket);
+
+        RouteNode right = new RouteNode(node.getDepth() + 1);
+        Bucket rightBucket = new Bucket(ksize, rpc, evictions);
+        right.setKbucket(rightBucket);
+
+        // add the hosts to the new buckets. Each gets at most the k hosts of the old one, so none is full. The
+        // replacements go in after them and may fill the new buckets up.
+        int bit = bitLen - node.getDepth() - 1;
+        List<Host> hosts = new ArrayList<>(oldBucket.retire());
+        hosts.addAll(oldBucket.getReplacements());
+        for (Host host : hosts) {
+            Bucket kbucket = getBit(host.getKey(), bit) == 0 ? leftBucket : rightBucket;
+            kbucket.addHost(host);
+        }
+
+        allBuckets.add(leftBucket);
+        allBuckets.add(rightBucket);
+        node.setLeft(left);
+        node.setRight(right);
+        node.setKbucket(null);
+        allBuckets.remove(oldBucket);
+    }
+
+    @Override
+    public List<Host> allHosts() {
+        List<Host> hosts = new ArrayList<>();
+        for (Bucket bucket : allBuckets) {
+            hosts.addAll(bucket.getNodesInBucket());
+        }
+        return hosts;
+    }
+
+    /**
+     * Finds the hosts closest to a key by walking the route tree in XOR distance order. At each branch the side that
+     * matches the key's bit holds only hosts closer than any on the other side, so buckets are visited closest first
+     * and the walk stops as soon as count hosts are collected. Only the hosts of the buckets visited get sorted.
+     */
+    @Override
+    public List<Host> getClosestHosts(long key, int count, boolean matchSelf) {
+        List<Host> closest = new ArrayList<>(count);
+        collectClosestHosts(kbucketTree, key, bitLen - 1, count, matchSelf ? null : self, closest);
+        return closest;
+    }
+
+    private void collectClosestHosts(RouteNode node, long key, int bit, int count, Host exclude, List<Host> closest) {
+        if (closest.size() >= count) {
+            return;
+        }
+
+        Optional<Bucket> kbucket = node.getKbucket();
+        if (kbucket.isPresent()) {
+            kbucket.get().addClosestTo(key, count, exclude, closest);
+            return;
+        }
+
+        // a leaf bucket is reached before the bits run out, so bit is never negative here
+        boolean keyBitSet = getBit(key, bit) != 0;
+        RouteNode near = (keyBitSet ? node.getRight() : node.getLeft()).get();
+        RouteNode far = (keyBitSet ? node.getLeft() : node.getRight()).get();
+        collectClosestHosts(near, key, bit - 1, count, exclude, closest);
+        collectClosestHosts(far, key, bit - 1, count, exclude, closest);
+    }
+
+    @Override
+    public Bucket getClosestBucket(long key) {
+        while (true) {
+            Optional<Bucket> kbucket = getClosestNode(key).getKbucket();
+            if (kbucket.isPresent()) {
+                return kbucket.get();
+            }
+        }
+    }
+
+    private RouteNode getClosestNode(long key) {
+        RouteNode currNode = kbucketTree;
+        for (int i = 0; i < bitLen; i++) {
+            long dir = getBit(key, bitLen - i - 1);
+            Optional<RouteNode> nextNode;
+
+            // check branch
+            if (dir == 0) {
+                nextNode = currNode.getLeft();
+            } else {
+                nextNode = currNode.getRight();
+            }
+
+            // if there is a next node, get the next node in the chain
+            // else return this result
+            if (nextNode.isPresent()) {
+                currNode = nextNode.get();
+            } else {
+                break;
+            }
+        }
+        return currNode;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * The path from the root to the bucket's leaf fixes the top bits of the key; the rest are random.
+     */
+    @Override
+    public long randomKeyIn(Bucket bucket) {
+        Optional<Long> key = randomKeyIn(kbucketTree, 0, bucket);
+        if (!key.isPresent()) {
+            throw new IllegalArgumentException("Not a bucket of this table");
+        }
+        return key.get();
+    }
+
+    private Optional<Long> randomKeyIn(RouteNode node, long prefix, Bucket bucket) {
+        Optional<Bucket> kbucket = node.getKbucket();
+        if (kbucket.isPresent()) {
+            if (kbucket.get() != bucket) {
+                return Optional.empty();
+            }
+            int freeBits = bitLen - node.getDepth();
+            long freeMask = freeBits == Long.SIZE ? -1L : (1L << freeBits) - 1;
+            return Optional.of(prefix | (ThreadLocalRandom.current().nextLong() & freeMask));
+        }
+
+        long bit = 1L << (bitLen - node.getDepth() - 1);
+        Optional<Long> key = randomKeyIn(node.getLeft().get(), prefix, bucket);
+        return key.isPresent() ? key : randomKeyIn(node.getRight().get(), prefix | bit, bucket);
+    }
+
+    private long getBit(long v, int id) {
+        return (v >> id) & 1;
+    }
+
+    private static class RouteNode {
+        // The number of bits of the key this node's position fixes
+        @Getter
+        final int depth;
+        @Getter
+        volatile Optional<Bucket> kbucket = Optional.empty(); // right now the bucket can only have 1 element. k=1 (I think)
+        @Getter
+        volatile Optional<RouteNode> left = Optional.empty(); // 0 branch
+        @Getter
+        volatile Optional<RouteNode> right = Optional.empty(); // 1 branch
+
+        RouteNode(int depth) {
+            this.depth = depth;
+        }
+
+        public void setKbucket(Bucket kbucket) {
+            this.kbucket = Optional.ofNullable(kbucket);
+        }
+
+        public void setLeft(RouteNode left) {
+            this.left = Optional.ofNullable(left);
+        }
+
+        public void setRight(RouteNode right) {
+            this.right = Optional.ofNullable(right);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.rmi.ConnectException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A {@link KademliaRPC} that talks to other nodes over UDP instead of RMI. Messages use the compact binary format in
+ * {@link MessageCodec} and are matched to their answers by request ID and by the address the request went to. An
+ * answer that cannot be decoded counts as no answer.
+ *
+ * Like the in-process DummyNetwork, the receiving node adds every requester to its routing table, and hands its data
+ * over to hosts that are joining.
+ *
+ * Each node owns one datagram channel and one selector thread. The selector thread only moves bytes: it completes
+ * the pending call an answer belongs to, hands incoming requests to the handler pool, and retransmits requests that
+ * have not been answered in time. A request that is still unanswered after maxAttempts sends fails with a
+ * {@link ConnectException}, just like an unreachable RMI host.
+ *
+ * A value has to fit in a single datagram, a little under 64 KB. Larger values need the RMI transport.
+ */
+public class UdpKademliaRPC implements KademliaRPC, Closeable {
+    // Default wait before the first retransmit. Each retry doubles it.
+    public static final long DEFAULT_RETRANSMIT_MILLIS = 200;
+
+    // Default number of times a request is sent before giving up
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    private final Host self;
+
+    private final DatagramChannel channel;
+
+    private final Selector selector;
+
+    private final Thread selectorThread;
+
+    // Runs incoming requests so a slow handler never holds up the selector thread
+    private final ExecutorService handlerExecutor;
+
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    // Requests sent by this node that are waiting for an answer, by request ID
+    private final Map<Integer, PendingRequest> pending = new ConcurrentHashMap<>();
+
+    // Heap buffers to encode messages into. Each goes back once its message has been copied out or sent, so there are
+    // only as many as there were messages being encoded at once.
+    private final Queue<ByteBuffer> encodeBuffers = new ConcurrentLinkedQueue<>();
+
+    // Serves the requests other nodes send us
+    private volatile KademliaClient handler;
+
+    private volatile boolean running = true;
+
+    @Getter @Setter
+    private long retransmitMillis = DEFAULT_RETRANSMIT_MILLIS;
+
+    @Getter @Setter
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /**
+     * Binds a channel to the address of the given host. Call {@link #start(KademliaClient)} to begin serving.
+     *
+     * @param self the host this node runs as
+     */
+    public UdpKademliaRPC(Host self) throws IOException {
+        this.self = self;
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(self.getIp(), self.getPort()));
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.channel.register(selector, SelectionKey.OP_READ);
+
+        this.selectorThread = new Thread(this::run, "kademlia-udp-" + self.getPort());
+        this.selectorThread.setDaemon(true);
+        this.handlerExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "kademlia-udp-handler-" + self.getPort());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the selector thread.
+     *
+     * @param handler answers the requests other nodes send to this one
+     */
+    public void start(KademliaClient handler) {
+        this.handler = handler;
+        selectorThread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        handlerExecutor.shutdownNow();
+        for (PendingRequest request : pending.values()) {
+            request.response.completeExceptionally(new ConnectException("Channel closed"));
+        }
+        pending.clear();
+        selector.close();
+        channel.close();
+    }
+
+    @Override
+    public List<Host> findNode(Host host, long key, boolean isNew) throws ConnectException {
+        ByteBuffer response = call(host, MessageCodec.FIND_NODE, buffer -> {
+            buffer.putLong(key);
+            buffer.put((byte) (isNew ? 1 : 0));
+        });
+        return decode(host, response, MessageCodec::readHosts);
+    }
+
+    @Override
+    public HostSearchResult findValue(Host host, long key) throws ConnectException {
+        ByteBuffer response = call(host, MessageCodec.FIND_VALUE, buffer -> buffer.putLong(key));
+        return decode(host, response, MessageCodec::readSearchResult);
+    }
+
+    @Override
+    public void store(Host host, long key, DataBlock data) throws ConnectException {
+        checkFits(data);
+        call(host, MessageCodec.STORE, buffer -> {
+            buffer.putLong(key);
+            MessageCodec.writeData(buffer, data);
+        });
+    }
+
+    @Override
+    public void cache(Host host, long key, DataBlock data) throws ConnectException {
+        checkFits(data);
+        call(host, MessageCodec.CACHE, buffer -> {
+            buffer.putLong(key);
+            MessageCodec.writeData(buffer, data);
+        });
+    }
+
+    /**
+     * Sends the entries in as many datagrams as it takes to fit them.
+     */
+    @Override
+    public void storeBatch(Host host, Map<Long, DataBlock> entries) throws ConnectException {
+        Map<Long, DataBlock> datagram = new LinkedHashMap<>();
+        int datagramBytes = Short.BYTES;
+        for (var entry : entries.entrySet()) {
+            checkFits(entry.getValue());
+            int entryBytes = Long.BYTES + entry.getValue().encodedSize();
+            if (!datagram.isEmpty() && (datagramBytes + entryBytes > MessageCodec.MAX_REQUEST_BODY
+                    || datagram.size() == 0xFFFF)) {
+                sendBatch(host, datagram);
+                datagram = new LinkedHashMap<>();
+                datagramBytes = Short.BYTES;
+            }
+            datagram.put(entry.getKey(), entry.getValue());
+            datagramBytes += entryBytes;
+        }
+        if (!datagram.isEmpty()) {
+            sendBatch(host, datagram);
+        }
+    }
+
+    // values are not split across datagrams, so one that does not fit can never be sent
+    private static void checkFits(DataBlock data) throws ConnectException {
+        if (data.encodedSize() > MessageCodec.MAX_DATA_SIZE) {
+            throw new ConnectException("A " + data.size() + " byte value does not fit in a datagram");
+        }
+    }
+
+    private void sendBatch(Host host, Map<Long, DataBlock> entries) throws ConnectException {
+        call(host, MessageCodec.STORE_BATCH, buffer -> MessageCodec.writeEntries(buffer, entries));
+    }
+
+    @Override
+    public boolean ping(Host host) {
+        try {
+            return decode(host, call(host, MessageCodec.PING, buffer -> { }), buffer -> buffer.get() != 0);
+        } catch (ConnectException exception) {
+            return false;
+        }
+    }
+
+    // An answer that cannot be decoded counts as no answer at all
+    private static <T> T decode(Host host, ByteBuffer response, Function<ByteBuffer, T> decoder)
+            throws ConnectException {
+        try {
+            return decoder.apply(response);
+        } catch (BufferUnderflowException exception) {
+            throw new ConnectException("Malformed answer from " + host, exception);
+        }
+    }
+
+    /**
+     * Sends a request and blocks until it is answered or every retransmit has gone unanswered.
+     *
+     * @return the body of the response, positioned after the header
+     */
+    private ByteBuffer call(Host host, byte type, Consumer<ByteBuffer> body) throws ConnectException {
+        int requestId = nextRequestId.incrementAndGet();
+        ByteBuffer buffer = takeEncodeBuffer();
+        ByteBuffer message;
+        try {
+            MessageCodec.writeRequestHeader(buffer, type, requestId, self);
+            body.accept(buffer);
+            buffer.flip();
+
+            // keep a copy of the request, sized to it, for retransmits
+            message = ByteBuffer.allocate(buffer.remaining());
+            message.put(buffer).flip();
+        } finally {
+            encodeBuffers.offer(buffer);
+        }
+
+        PendingRequest request = new PendingRequest(message, new InetSocketAddress(host.getIp(), host.getPort()));
+        request.deadline = System.currentTimeMillis() + retransmitMillis;
+        pending.put(requestId, request);
+        try {
+            send(message.duplicate(), request.address);
+            return request.response.get();
+        } catch (ExecutionException exception) {
+            throw new ConnectException("No answer from " + host, (Exception) exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new ConnectException("Interrupted while waiting for " + host);
+        } finally {
+            pending.remove(requestId);
+        }
+    }
+
+    private ByteBuffer takeEncodeBuffer() {
+        ByteBuffer buffer = encodeBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(MessageCodec.MAX_MESSAGE_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void send(ByteBuffer message, SocketAddress address) {
+        try {
+            // a datagram the socket could not take is treated as lost and picked up by the retransmit
+            channel.send(message, address);
+        } catch (IOException exception) {
+            System.err.println("Unable to send datagram to " + address);
+        }
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MessageCodec.MAX_MESSAGE_SIZE);
+        while (running) {
+            try {
+                selector.select(Math.max(1, retransmitMillis / 2));
+                selector.selectedKeys().clear();
+
+                SocketAddress sender;
+                buffer.clear();
+                while ((sender = channel.receive(buffer)) != null) {
+                    buffer.flip();
+                    receive(buffer, sender);
+                    buffer.clear();
+                }
+
+                retransmitExpired();
+            } catch (ClosedChannelException | ClosedSelectorException exception) {
+                return;
+            } catch (IOException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    private void receive(ByteBuffer buffer, SocketAddress sender) {
+        if (buffer.remaining() < MessageCodec.HEADER_SIZE) {
+            return;
+        }
+        byte type = buffer.get();
+        int requestId = buffer.getInt();
+
+        // copy the body out of the shared receive buffer before handing it to another thread
+        ByteBuffer body = ByteBuffer.allocate(buffer.remaining());
+        body.put(buffer).flip();
+
+        if (MessageCodec.isResponse(type)) {
+            PendingRequest request = pending.get(requestId);
+            // request IDs are easy to guess, so only the host that was asked can answer
+            if (request != null && request.address.equals(sender)) {
+                request.response.complete(body);
+            }
+            return;
+        }
+
+        try {
+            handlerExecutor.execute(() -> serve(type, requestId, body, sender));
+        } catch (RejectedExecutionException exception) {
+            // shutting down
+        }
+    }
+
+    private void serve(byte type, int requestId, ByteBuffer body, SocketAddress sender) {
+        KademliaClient client = handler;
+        ByteBuffer buffer = takeEncodeBuffer();
+        Host src;
+        boolean isNew = false;
+        try {
+            MessageCodec.writeHeader(buffer, (byte) (type | MessageCodec.RESPONSE), requestId);
+            src = MessageCodec.readSender(body, ((InetSocketAddress) sender).getAddress().getHostAddress());
+            switch (type) {
+                case MessageCodec.FIND_NODE:
+                    long target = body.getLong();
+                    isNew = body.get() != 0;
+                    MessageCodec.writeHosts(buffer, client.findNode(target));
+                    break;
+                case MessageCodec.FIND_VALUE:
+                    MessageCodec.writeSearchResult(buffer, client.findValue(body.getLong()));
+                    break;
+                case MessageCodec.STORE:
+                    long key = body.getLong();
+                    client.store(key, MessageCodec.readData(body));
+                    break;
+                case MessageCodec.STORE_BATCH:
+                    client.storeBatch(MessageCodec.readEntries(body));
+                    break;
+                case MessageCodec.CACHE:
+                    long cachedKey = body.getLong();
+                    client.cache(cachedKey, MessageCodec.readData(body));
+                    break;
+                case MessageCodec.PING:
+                    buffer.put((byte) (client.ping() ? 1 : 0));
+                    break;
+                default:
+                    return;
+            }
+            buffer.flip();
+            send(buffer, sender);
+        } catch (BufferUnderflowException exception) {
+            System.err.println("Dropping malformed request from " + sender);
+            return;
+        } catch (BufferOverflowException exception) {
+            System.err.println("Answer to " + sender + " does not fit in a datagram");
+            return;
+        } finally {
+            encodeBuffers.offer(buffer);
+        }
+
+        // answer first so the requester is not kept waiting on our own bookkeeping
+        if (type == MessageCodec.FIND_NODE || type == MessageCodec.FIND_VALUE) {
+            client.addHost(src);
+        }
+        if (isNew) {
+            client.replicateClosest(src);
+        }
+    }
+
+    /**
+     * Resends requests whose deadline passed, backing off exponentially, and fails the ones that ran out of attempts.
+     */
+    private void retransmitExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<PendingRequest> requests = pending.values().iterator();
+        while (requests.hasNext()) {
+            PendingRequest request = requests.next();
+            if (request.deadline > now) {
+                continue;
+            }
+            if (request.attempts >= maxAttempts) {
+                requests.remove();
+                request.response.completeExceptionally(new TimeoutException("No answer after " + request.attempts + " attempts"));
+                continue;
+            }
+            request.attempts++;
+            request.deadline = now + (retransmitMillis << (request.attempts - 1));
+            send(request.message.duplicate(), request.address);
+        }
+    }
+
+    // A request this node sent that has not been answered yet. Only the selector thread touches deadline and attempts.
+    private static class PendingRequest {
+        final ByteBuffer message;
+        final SocketAddress address;
+        final CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        long deadline;
+        int attempts = 1;
+
+        PendingRequest(ByteBuffer message, SocketAddress address) {
+            this.message = message;
+            this.address = address;
+        }
+    }
+}
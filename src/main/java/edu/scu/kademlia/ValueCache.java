@@ -0,0 +1,131 @@
+package edu.scu.kademlia;
+
+import lombok.Getter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies of values this node does not store itself: values it fetched, and values a reader handed it because it was
+ * the closest host on the lookup path that did not have them. Each copy expires after its own TTL, and the least
+ * recently used copies are dropped once the cache holds more than maxBytes.
+ */
+public class ValueCache {
+    // Default memory budget of the cache
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    // Rough cost of an entry besides its payload: the map node, the boxed key and the entry itself
+    static final int ENTRY_OVERHEAD = 96;
+
+    @Getter
+    private long maxBytes;
+
+    // Bytes taken up by the cached entries, counted with ENTRY_OVERHEAD
+    private long bytes;
+
+    // Least recently used first
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public ValueCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public ValueCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached value, or null if there is none or it has expired
+     */
+    public synchronized DataBlock get(long key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.data;
+    }
+
+    /**
+     * Caches a value for ttlMillis, evicting the least recently used values if it does not fit otherwise. A value
+     * bigger than the whole budget is not cached.
+     */
+    public synchronized void put(long key, DataBlock data, long ttlMillis) {
+        remove(key);
+        long cost = cost(data);
+        if (ttlMillis <= 0 || cost > maxBytes) {
+            return;
+        }
+        entries.put(key, new Entry(data, System.currentTimeMillis() + ttlMillis));
+        bytes += cost;
+        evict();
+    }
+
+    public synchronized void remove(long key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= cost(entry.data);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return the number of values cached, including expired ones not dropped yet
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the memory the cached values take up, as counted against maxBytes
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            bytes -= cost(entry.data);
+        }
+        // expired entries at the cold end are dead weight too
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.expiresAt > now) {
+                break;
+            }
+            iterator.remove();
+            bytes -= cost(entry.data);
+        }
+    }
+
+    private static long cost(DataBlock data) {
+        return ENTRY_OVERHEAD + data.size();
+    }
+
+    private static class Entry {
+        final DataBlock data;
+        final long expiresAt;
+
+        Entry(DataBlock data, long expiresAt) {
+            this.data = data;
+            this.expiresAt = expiresAt;
+        }
+    }
+}